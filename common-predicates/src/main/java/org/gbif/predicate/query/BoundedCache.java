@@ -0,0 +1,164 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.predicate.query;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.function.ToLongBiFunction;
+import lombok.Value;
+
+/**
+ * Thread safe cache with a maximum number of entries and a maximum total weight, the least
+ * recently used entries are evicted when it is full. Used to prepare the same values, like the
+ * geometries of the within predicates, only once for many queries. The weight bounds the memory of
+ * values of very different sizes, e.g. the length of the WKT of a geometry.
+ *
+ * <p>Values are computed outside the lock, so two threads can compute the same value at the same
+ * time, the last one is kept. Values that can't be computed, and values heavier than the cache,
+ * aren't cached.
+ *
+ * @param <K> type of the keys
+ * @param <V> type of the values, these are shared between threads and mustn't be changed
+ */
+public class BoundedCache<K, V> {
+
+  private final int maxSize;
+  private final long maxWeight;
+  private final ToLongBiFunction<? super K, ? super V> weigher;
+  private final Map<K, Entry<V>> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+  private long weight;
+  private long hits;
+  private long misses;
+  private long evictions;
+
+  /**
+   * Creates an empty cache bounded by the number of entries only.
+   *
+   * @param maxSize maximum number of entries, 0 to cache nothing
+   */
+  public BoundedCache(int maxSize) {
+    this(maxSize, Long.MAX_VALUE, (k, v) -> 0);
+  }
+
+  /**
+   * Creates an empty cache bounded by the number of entries and their total weight.
+   *
+   * @param maxSize maximum number of entries, 0 to cache nothing
+   * @param maxWeight maximum total weight of the entries
+   * @param weigher weight of an entry, e.g. an estimate of its size
+   */
+  public BoundedCache(
+      int maxSize, long maxWeight, ToLongBiFunction<? super K, ? super V> weigher) {
+    if (maxSize < 0) {
+      throw new IllegalArgumentException("Cache size can't be negative: " + maxSize);
+    }
+    if (maxWeight < 0) {
+      throw new IllegalArgumentException("Cache weight can't be negative: " + maxWeight);
+    }
+    this.maxSize = maxSize;
+    this.maxWeight = maxWeight;
+    this.weigher = weigher;
+  }
+
+  /**
+   * Looks a value up, and computes it if it isn't in the cache.
+   *
+   * @param key of the value
+   * @param loader computes the value of the key if it isn't in the cache
+   * @return the cached or computed value
+   */
+  public V get(K key, Function<? super K, ? extends V> loader) {
+    synchronized (this) {
+      Entry<V> entry = entries.get(key);
+      if (entry != null) {
+        hits++;
+        return entry.value;
+      }
+      misses++;
+    }
+
+    V value = loader.apply(key);
+    if (value == null || maxSize == 0) {
+      return value;
+    }
+    long entryWeight = weigher.applyAsLong(key, value);
+    if (entryWeight > maxWeight) {
+      return value;
+    }
+
+    synchronized (this) {
+      Entry<V> previous = entries.put(key, new Entry<>(value, entryWeight));
+      if (previous != null) {
+        weight -= previous.weight;
+      }
+      weight += entryWeight;
+
+      // the least recently used entries come first
+      Iterator<Entry<V>> eldest = entries.values().iterator();
+      while (entries.size() > maxSize || weight > maxWeight) {
+        weight -= eldest.next().weight;
+        eldest.remove();
+        evictions++;
+      }
+    }
+    return value;
+  }
+
+  /** Removes all the entries, the statistics are kept. */
+  public synchronized void clear() {
+    entries.clear();
+    weight = 0;
+  }
+
+  /**
+   * Returns the statistics of the cache, to size it.
+   *
+   * @return number of hits, misses and evictions since the cache was created, and its size and
+   *     weight
+   */
+  public synchronized Stats getStats() {
+    return new Stats(hits, misses, evictions, entries.size(), maxSize, weight, maxWeight);
+  }
+
+  private static class Entry<V> {
+    private final V value;
+    private final long weight;
+
+    private Entry(V value, long weight) {
+      this.value = value;
+      this.weight = weight;
+    }
+  }
+
+  /** Statistics of a cache at a point in time. */
+  @Value
+  public static class Stats {
+    long hits;
+    long misses;
+    long evictions;
+    int size;
+    int maxSize;
+    long weight;
+    long maxWeight;
+
+    /** Hits per look up, 0 if there were no look ups. */
+    public double getHitRate() {
+      long lookUps = hits + misses;
+      return lookUps == 0 ? 0 : (double) hits / lookUps;
+    }
+  }
+}
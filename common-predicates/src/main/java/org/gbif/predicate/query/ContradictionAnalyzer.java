@@ -0,0 +1,324 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.predicate.query;
+
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+import lombok.RequiredArgsConstructor;
+import org.gbif.api.model.common.search.SearchParameter;
+import org.gbif.api.model.predicate.ConjunctionPredicate;
+import org.gbif.api.model.predicate.EqualsPredicate;
+import org.gbif.api.model.predicate.GreaterThanOrEqualsPredicate;
+import org.gbif.api.model.predicate.GreaterThanPredicate;
+import org.gbif.api.model.predicate.InPredicate;
+import org.gbif.api.model.predicate.IsNotNullPredicate;
+import org.gbif.api.model.predicate.IsNullPredicate;
+import org.gbif.api.model.predicate.LessThanOrEqualsPredicate;
+import org.gbif.api.model.predicate.LessThanPredicate;
+import org.gbif.api.model.predicate.Predicate;
+import org.gbif.api.model.predicate.RangePredicate;
+import org.gbif.api.model.predicate.SimplePredicate;
+import org.gbif.api.util.IsoDateInterval;
+import org.gbif.api.util.IsoDateParsingUtils;
+import org.gbif.api.util.Range;
+import org.gbif.api.util.RangeValue;
+import org.gbif.api.util.SearchTypeValidator;
+
+/**
+ * Finds conjunctions that no record can match, e.g. {@code YEAR = 2000 AND YEAR = 2001} or {@code
+ * ISNULL(MONTH) AND MONTH = 1}.
+ *
+ * <p>The predicates of a conjunction, and of the conjunctions nested in it, are checked per search
+ * parameter and checklist key:
+ *
+ * <ul>
+ *   <li>a null check contradicts the opposite null check, and any predicate on a value
+ *   <li>equals and in predicates must have a value in common, compared ignoring case
+ *   <li>comparisons, equals predicates and ranges on numbers and dates must overlap
+ *   <li>equals predicates on date intervals must overlap
+ * </ul>
+ *
+ * <p>Values are only compared for search parameters that have a single value per record, the
+ * backend decides which ones those are. A parameter with many values, like the issues of an
+ * occurrence, can be equal to two different values at the same time. Anything that isn't understood
+ * is assumed to be satisfiable, so a conjunction is only reported when it really can't match.
+ */
+@RequiredArgsConstructor
+public class ContradictionAnalyzer<S extends SearchParameter> {
+
+  /** Search parameters that have at most one value per record. */
+  private final java.util.function.Predicate<S> singleValued;
+
+  /** Predicates that match the records without a value too. */
+  private final java.util.function.Predicate<SimplePredicate<S>> nullIncluded;
+
+  /**
+   * Checks a conjunction for contradictions.
+   *
+   * @param predicate conjunction to check
+   * @return true if no record can match the conjunction
+   */
+  public boolean isContradiction(ConjunctionPredicate predicate) {
+    Map<List<Object>, Constraints> constraints = new HashMap<>();
+    return isContradiction(predicate, constraints);
+  }
+
+  private boolean isContradiction(
+      ConjunctionPredicate predicate, Map<List<Object>, Constraints> constraints) {
+    if (predicate.getPredicates() == null) {
+      return false;
+    }
+    for (Predicate subPredicate : predicate.getPredicates()) {
+      if (subPredicate instanceof ConjunctionPredicate) {
+        if (isContradiction((ConjunctionPredicate) subPredicate, constraints)) {
+          return true;
+        }
+        continue;
+      }
+
+      S parameter = parameter(subPredicate);
+      if (parameter == null) {
+        continue;
+      }
+      Constraints parameterConstraints =
+          constraints.computeIfAbsent(
+              Arrays.asList(parameter, PredicateNormalizer.checklistKey(subPredicate)),
+              k -> new Constraints());
+      if (!parameterConstraints.add(parameter, subPredicate)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /** What is known of the value of a search parameter, from the predicates seen so far. */
+  private class Constraints {
+
+    private boolean isNull;
+    private boolean isNotNull;
+    private boolean hasValue;
+
+    // lowercase values the parameter can be equal to, null if any
+    private Set<String> values;
+
+    private Comparable<Object> lower;
+    private boolean lowerInclusive;
+    private Comparable<Object> upper;
+    private boolean upperInclusive;
+
+    /** Adds a predicate, returns false if it contradicts the previous ones. */
+    @SuppressWarnings("unchecked")
+    private boolean add(S parameter, Predicate predicate) {
+      if (predicate instanceof IsNullPredicate) {
+        isNull = true;
+        return !isNotNull && !hasValue;
+      }
+      if (predicate instanceof IsNotNullPredicate) {
+        isNotNull = true;
+        return !isNull;
+      }
+      if (predicate instanceof SimplePredicate
+          && nullIncluded.test((SimplePredicate<S>) predicate)) {
+        return true;
+      }
+
+      hasValue = true;
+      if (isNull) {
+        return false;
+      }
+      if (!singleValued.test(parameter)) {
+        return true;
+      }
+
+      try {
+        Class<?> type = parameter.type();
+        if (Number.class.isAssignableFrom(type)) {
+          return addNumber(predicate);
+        } else if (Date.class.isAssignableFrom(type)) {
+          return addDate(predicate);
+        } else if (IsoDateInterval.class.isAssignableFrom(type)) {
+          // the interval of the record must be within the equals ranges, other comparisons are
+          // left out as they apply to either end of the interval
+          return !(predicate instanceof EqualsPredicate)
+              || addDateRange(((EqualsPredicate<?>) predicate).getValue());
+        } else if (predicate instanceof EqualsPredicate) {
+          return addValues(List.of(((EqualsPredicate<?>) predicate).getValue()));
+        } else if (predicate instanceof InPredicate) {
+          return addValues(((InPredicate<?>) predicate).getValues());
+        }
+      } catch (RuntimeException e) {
+        // values that can't be parsed are left to the backends
+      }
+      return true;
+    }
+
+    private boolean addValues(Collection<String> predicateValues) {
+      Set<String> lowerCaseValues =
+          predicateValues.stream().map(v -> v.toLowerCase(Locale.ROOT)).collect(Collectors.toSet());
+      if (values == null) {
+        values = new HashSet<>(lowerCaseValues);
+      } else {
+        values.retainAll(lowerCaseValues);
+      }
+      return !values.isEmpty();
+    }
+
+    private boolean addNumber(Predicate predicate) {
+      if (predicate instanceof EqualsPredicate) {
+        String value = ((EqualsPredicate<?>) predicate).getValue();
+        if (SearchTypeValidator.isNumericRange(value)) {
+          Range<Double> range = SearchTypeValidator.parseDecimalRange(value);
+          if (range.hasLowerBound()) {
+            addLower(BigDecimal.valueOf(range.lowerEndpoint()), true);
+          }
+          if (range.hasUpperBound()) {
+            addUpper(BigDecimal.valueOf(range.upperEndpoint()), true);
+          }
+        } else {
+          BigDecimal number = new BigDecimal(value.trim());
+          addLower(number, true);
+          addUpper(number, true);
+        }
+      } else if (predicate instanceof InPredicate) {
+        // the smallest interval with all the values
+        BigDecimal min = null;
+        BigDecimal max = null;
+        for (String value : ((InPredicate<?>) predicate).getValues()) {
+          BigDecimal number = new BigDecimal(value.trim());
+          min = min == null ? number : min.min(number);
+          max = max == null ? number : max.max(number);
+        }
+        if (min != null) {
+          addLower(min, true);
+          addUpper(max, true);
+        }
+      } else if (predicate instanceof RangePredicate) {
+        RangeValue range = ((RangePredicate<?>) predicate).getValue();
+        if (range.getGte() != null) {
+          addLower(new BigDecimal(range.getGte().trim()), true);
+        } else if (range.getGt() != null) {
+          addLower(new BigDecimal(range.getGt().trim()), false);
+        }
+        if (range.getLte() != null) {
+          addUpper(new BigDecimal(range.getLte().trim()), true);
+        } else if (range.getLt() != null) {
+          addUpper(new BigDecimal(range.getLt().trim()), false);
+        }
+      } else if (isComparison(predicate)) {
+        BigDecimal number = new BigDecimal(((SimplePredicate<?>) predicate).getValue().trim());
+        if (predicate instanceof GreaterThanOrEqualsPredicate
+            || predicate instanceof GreaterThanPredicate) {
+          addLower(number, predicate instanceof GreaterThanOrEqualsPredicate);
+        } else {
+          addUpper(number, predicate instanceof LessThanOrEqualsPredicate);
+        }
+      }
+      return !isEmpty();
+    }
+
+    private boolean addDate(Predicate predicate) {
+      if (predicate instanceof EqualsPredicate) {
+        return addDateRange(((EqualsPredicate<?>) predicate).getValue());
+      } else if (isComparison(predicate)) {
+        // the same bounds as the query visitors: "> 2000" starts at the end of 2000, "< 2000" ends
+        // at its start
+        Range<LocalDate> range =
+            IsoDateParsingUtils.parseDateRange(((SimplePredicate<?>) predicate).getValue());
+        if (predicate instanceof GreaterThanOrEqualsPredicate && range.hasLowerBound()) {
+          addLower(range.lowerEndpoint(), true);
+        } else if (predicate instanceof GreaterThanPredicate && range.hasUpperBound()) {
+          addLower(range.upperEndpoint(), true);
+        } else if (predicate instanceof LessThanOrEqualsPredicate && range.hasUpperBound()) {
+          addUpper(range.upperEndpoint(), false);
+        } else if (predicate instanceof LessThanPredicate && range.hasLowerBound()) {
+          addUpper(range.lowerEndpoint(), false);
+        }
+      }
+      return !isEmpty();
+    }
+
+    /** Adds a date range, which includes its lower bound and excludes the upper one. */
+    private boolean addDateRange(String value) {
+      Range<LocalDate> range = IsoDateParsingUtils.parseDateRange(value);
+      if (range.hasLowerBound()) {
+        addLower(range.lowerEndpoint(), true);
+      }
+      if (range.hasUpperBound()) {
+        addUpper(range.upperEndpoint(), false);
+      }
+      return !isEmpty();
+    }
+
+    @SuppressWarnings("unchecked")
+    private void addLower(Comparable<?> value, boolean inclusive) {
+      Comparable<Object> v = (Comparable<Object>) value;
+      int c = lower == null ? 1 : v.compareTo(lower);
+      if (c > 0 || (c == 0 && !inclusive)) {
+        lower = v;
+        lowerInclusive = inclusive;
+      }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void addUpper(Comparable<?> value, boolean inclusive) {
+      Comparable<Object> v = (Comparable<Object>) value;
+      int c = upper == null ? -1 : v.compareTo(upper);
+      if (c < 0 || (c == 0 && !inclusive)) {
+        upper = v;
+        upperInclusive = inclusive;
+      }
+    }
+
+    private boolean isEmpty() {
+      if (lower == null || upper == null) {
+        return false;
+      }
+      int c = lower.compareTo(upper);
+      return c > 0 || (c == 0 && !(lowerInclusive && upperInclusive));
+    }
+  }
+
+  private static boolean isComparison(Predicate predicate) {
+    return predicate instanceof GreaterThanOrEqualsPredicate
+        || predicate instanceof GreaterThanPredicate
+        || predicate instanceof LessThanOrEqualsPredicate
+        || predicate instanceof LessThanPredicate;
+  }
+
+  @SuppressWarnings("unchecked")
+  private S parameter(Predicate predicate) {
+    if (predicate instanceof SimplePredicate) {
+      return ((SimplePredicate<S>) predicate).getKey();
+    } else if (predicate instanceof InPredicate) {
+      return ((InPredicate<S>) predicate).getKey();
+    } else if (predicate instanceof RangePredicate) {
+      return ((RangePredicate<S>) predicate).getKey();
+    } else if (predicate instanceof IsNullPredicate) {
+      return ((IsNullPredicate<S>) predicate).getParameter();
+    } else if (predicate instanceof IsNotNullPredicate) {
+      return ((IsNotNullPredicate<S>) predicate).getParameter();
+    }
+    return null;
+  }
+}
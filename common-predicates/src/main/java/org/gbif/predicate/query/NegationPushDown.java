@@ -0,0 +1,168 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.predicate.query;
+
+import java.util.ArrayList;
+import java.util.List;
+import lombok.RequiredArgsConstructor;
+import org.gbif.api.model.common.search.SearchParameter;
+import org.gbif.api.model.predicate.CompoundPredicate;
+import org.gbif.api.model.predicate.ConjunctionPredicate;
+import org.gbif.api.model.predicate.DisjunctionPredicate;
+import org.gbif.api.model.predicate.GreaterThanOrEqualsPredicate;
+import org.gbif.api.model.predicate.GreaterThanPredicate;
+import org.gbif.api.model.predicate.IsNotNullPredicate;
+import org.gbif.api.model.predicate.IsNullPredicate;
+import org.gbif.api.model.predicate.LessThanOrEqualsPredicate;
+import org.gbif.api.model.predicate.LessThanPredicate;
+import org.gbif.api.model.predicate.NotPredicate;
+import org.gbif.api.model.predicate.Predicate;
+import org.gbif.api.model.predicate.SimplePredicate;
+import org.gbif.api.util.IsoDateInterval;
+
+/**
+ * Pushes negations down a predicate, towards the leaves, so the backends can use their indexes and
+ * statistics on negated filters:
+ *
+ * <ul>
+ *   <li>{@code NOT (A OR B)} becomes {@code NOT A AND NOT B}
+ *   <li>{@code NOT (A AND B)} becomes {@code NOT A OR NOT B}, and {@code NOT NOT A} becomes {@code
+ *       A}, if the backend negates conjunctions exactly
+ *   <li>{@code NOT year < 2000} becomes {@code year >= 2000}, and {@code NOT ISNULL(year)} becomes
+ *       {@code ISNOTNULL(year)}, for search parameters with a single value per record
+ * </ul>
+ *
+ * <p>A negated comparison never matches records without a value. If the flipped comparison would
+ * match them, as told by the backend, it is guarded with an is not null predicate.
+ */
+@RequiredArgsConstructor
+public class NegationPushDown<S extends SearchParameter> {
+
+  /** Search parameters that have at most one value per record, their comparisons can be flipped. */
+  private final java.util.function.Predicate<S> singleValued;
+
+  /** Predicates that match the records without a value too. */
+  private final java.util.function.Predicate<SimplePredicate<S>> nullIncluded;
+
+  /**
+   * Whether the negation of a conjunction is the disjunction of the negations in the backend. That
+   * isn't the case when a negation also requires all the negated fields to have a value.
+   */
+  private final boolean negatesConjunctions;
+
+  /**
+   * Pushes the negations of a predicate down.
+   *
+   * @param predicate to rewrite, can be null
+   * @return an equivalent predicate, the same instance if there is nothing to push down
+   */
+  public Predicate pushDown(Predicate predicate) {
+    if (predicate instanceof NotPredicate) {
+      Predicate negated = negate(((NotPredicate) predicate).getPredicate());
+      return negated != null ? negated : predicate;
+    }
+    if (predicate instanceof ConjunctionPredicate || predicate instanceof DisjunctionPredicate) {
+      CompoundPredicate compoundPredicate = (CompoundPredicate) predicate;
+      List<Predicate> children = new ArrayList<>(compoundPredicate.getPredicates().size());
+      boolean changed = false;
+      for (Predicate child : compoundPredicate.getPredicates()) {
+        Predicate pushedDown = pushDown(child);
+        children.add(pushedDown);
+        changed |= pushedDown != child;
+      }
+      if (changed) {
+        return compound(predicate instanceof ConjunctionPredicate, children);
+      }
+    }
+    return predicate;
+  }
+
+  /**
+   * Returns a predicate equivalent to the negation of the given one, or null if the negation can't
+   * be pushed down. The predicate of a negation that stays is left as it is, as the fields it uses
+   * can change the meaning of the negation.
+   */
+  @SuppressWarnings("unchecked")
+  private Predicate negate(Predicate predicate) {
+    if (predicate instanceof DisjunctionPredicate) {
+      return compound(true, negateAll((CompoundPredicate) predicate));
+    }
+    if (negatesConjunctions) {
+      if (predicate instanceof ConjunctionPredicate) {
+        return compound(false, negateAll((CompoundPredicate) predicate));
+      }
+      if (predicate instanceof NotPredicate) {
+        return pushDown(((NotPredicate) predicate).getPredicate());
+      }
+    }
+
+    if (predicate instanceof SimplePredicate) {
+      SimplePredicate<S> flipped = flip((SimplePredicate<S>) predicate);
+      if (flipped != null) {
+        // the negation doesn't match the records without a value, the flipped comparison may
+        return nullIncluded.test(flipped)
+            ? compound(true, List.of(flipped, new IsNotNullPredicate<>(flipped.getKey())))
+            : flipped;
+      }
+    } else if (predicate instanceof IsNullPredicate) {
+      IsNullPredicate<S> isNull = (IsNullPredicate<S>) predicate;
+      if (isNull.getChecklistKey() == null && singleValued.test(isNull.getParameter())) {
+        return new IsNotNullPredicate<>(isNull.getParameter());
+      }
+    } else if (predicate instanceof IsNotNullPredicate) {
+      IsNotNullPredicate<S> isNotNull = (IsNotNullPredicate<S>) predicate;
+      if (isNotNull.getChecklistKey() == null && singleValued.test(isNotNull.getParameter())) {
+        return new IsNullPredicate<>(isNotNull.getParameter());
+      }
+    }
+
+    return null;
+  }
+
+  private List<Predicate> negateAll(CompoundPredicate predicate) {
+    List<Predicate> negated = new ArrayList<>(predicate.getPredicates().size());
+    for (Predicate p : predicate.getPredicates()) {
+      Predicate n = negate(p);
+      negated.add(n != null ? n : new NotPredicate(p));
+    }
+    return negated;
+  }
+
+  /** The opposite comparison, or null if the predicate isn't a comparison that can be flipped. */
+  private SimplePredicate<S> flip(SimplePredicate<S> predicate) {
+    S key = predicate.getKey();
+    // the comparisons of date intervals apply to either end of the interval
+    if (!singleValued.test(key) || IsoDateInterval.class.isAssignableFrom(key.type())) {
+      return null;
+    }
+
+    String value = predicate.getValue();
+    if (predicate instanceof LessThanPredicate) {
+      return new GreaterThanOrEqualsPredicate<>(key, value);
+    } else if (predicate instanceof LessThanOrEqualsPredicate) {
+      return new GreaterThanPredicate<>(key, value);
+    } else if (predicate instanceof GreaterThanPredicate) {
+      return new LessThanOrEqualsPredicate<>(key, value);
+    } else if (predicate instanceof GreaterThanOrEqualsPredicate) {
+      return new LessThanPredicate<>(key, value);
+    }
+    return null;
+  }
+
+  private static Predicate compound(boolean conjunction, List<Predicate> predicates) {
+    return conjunction
+        ? new ConjunctionPredicate(predicates)
+        : new DisjunctionPredicate(predicates);
+  }
+}
@@ -0,0 +1,271 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.predicate.query;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.StringJoiner;
+import java.util.TreeMap;
+import lombok.AllArgsConstructor;
+import org.gbif.api.model.common.search.SearchParameter;
+import org.gbif.api.model.predicate.CompoundPredicate;
+import org.gbif.api.model.predicate.ConjunctionPredicate;
+import org.gbif.api.model.predicate.DisjunctionPredicate;
+import org.gbif.api.model.predicate.EqualsPredicate;
+import org.gbif.api.model.predicate.GeoDistancePredicate;
+import org.gbif.api.model.predicate.InPredicate;
+import org.gbif.api.model.predicate.IsNotNullPredicate;
+import org.gbif.api.model.predicate.IsNullPredicate;
+import org.gbif.api.model.predicate.LikePredicate;
+import org.gbif.api.model.predicate.NotPredicate;
+import org.gbif.api.model.predicate.Predicate;
+import org.gbif.api.model.predicate.RangePredicate;
+import org.gbif.api.model.predicate.SimplePredicate;
+import org.gbif.api.model.predicate.WithinPredicate;
+
+/**
+ * Rewrites a predicate into a normal form before it is translated by a query visitor:
+ *
+ * <ul>
+ *   <li>conjunctions nested in conjunctions, and disjunctions nested in disjunctions, are
+ *       flattened
+ *   <li>duplicated children of a conjunction or disjunction are removed
+ *   <li>children shared by all the branches of a disjunction are factored out, {@code (A AND B) OR
+ *       (A AND C)} becomes {@code A AND (B OR C)}, and the same for conjunctions of disjunctions
+ *   <li>branches that contain another branch are absorbed by it, {@code A OR (A AND B)} becomes
+ *       {@code A}
+ *   <li>conjunctions and disjunctions with a single child are replaced by the child
+ *   <li>the children of conjunctions and disjunctions are sorted in a canonical order
+ * </ul>
+ *
+ * <p>The normalized predicate matches the same records as the original one. Two predicates that
+ * only differ in the order or nesting of their children are normalized to the same predicate.
+ */
+public class PredicateNormalizer {
+
+  /**
+   * Normalizes a predicate.
+   *
+   * @param predicate to normalize, can be null
+   * @return the normalized predicate, or null if the predicate is null
+   */
+  public Predicate normalize(Predicate predicate) {
+    return predicate != null ? normalizeWithKey(predicate).predicate : null;
+  }
+
+  /**
+   * A normalized predicate, its canonical key and, for compound predicates, its children. Equal
+   * keys mean equal predicates, and the children of compound predicates are sorted by their keys.
+   */
+  @AllArgsConstructor
+  private static class Normalized {
+    private final Predicate predicate;
+    private final String key;
+    private final List<Normalized> children;
+  }
+
+  private Normalized normalizeWithKey(Predicate predicate) {
+    if (predicate instanceof ConjunctionPredicate || predicate instanceof DisjunctionPredicate) {
+      return normalizeCompound((CompoundPredicate) predicate);
+    }
+    if (predicate instanceof NotPredicate) {
+      Normalized child = normalizeWithKey(((NotPredicate) predicate).getPredicate());
+      return new Normalized(new NotPredicate(child.predicate), "NOT(" + child.key + ")", null);
+    }
+    return new Normalized(predicate, leafKey(predicate), null);
+  }
+
+  private Normalized normalizeCompound(CompoundPredicate predicate) {
+    boolean conjunction = predicate instanceof ConjunctionPredicate;
+
+    // sorted and without duplicates
+    Map<String, Normalized> children = new TreeMap<>();
+    addChildren(predicate, conjunction, children);
+
+    // left as it is, the visitors decide what an empty compound means
+    if (children.isEmpty()) {
+      return new Normalized(predicate, conjunction ? "AND()" : "OR()", new ArrayList<>());
+    }
+    if (children.size() == 1) {
+      return children.values().iterator().next();
+    }
+
+    Normalized factored = factorOut(children, conjunction);
+    if (factored != null) {
+      return factored;
+    }
+
+    List<Predicate> predicates = new ArrayList<>(children.size());
+    children.values().forEach(c -> predicates.add(c.predicate));
+    String key = (conjunction ? "AND(" : "OR(") + String.join(",", children.keySet()) + ")";
+    return new Normalized(
+        compound(conjunction, predicates), key, new ArrayList<>(children.values()));
+  }
+
+  /**
+   * Factors out the children shared by all the branches of a compound predicate, where a branch is
+   * a compound of the opposite type or a single predicate. Returns null if nothing is shared.
+   */
+  private Normalized factorOut(Map<String, Normalized> children, boolean conjunction) {
+    List<Map<String, Normalized>> branches = new ArrayList<>(children.size());
+    Set<String> shared = null;
+    for (Normalized child : children.values()) {
+      Map<String, Normalized> branch = new LinkedHashMap<>();
+      if (child.children != null && isCompound(child.predicate, !conjunction)) {
+        child.children.forEach(c -> branch.put(c.key, c));
+      } else {
+        branch.put(child.key, child);
+      }
+
+      if (shared == null) {
+        shared = new HashSet<>(branch.keySet());
+      } else {
+        shared.retainAll(branch.keySet());
+      }
+      if (shared.isEmpty()) {
+        return null;
+      }
+      branches.add(branch);
+    }
+
+    List<Predicate> factors = new ArrayList<>();
+    for (Normalized n : branches.get(0).values()) {
+      if (shared.contains(n.key)) {
+        factors.add(n.predicate);
+      }
+    }
+
+    List<Predicate> rests = new ArrayList<>(branches.size());
+    for (Map<String, Normalized> branch : branches) {
+      List<Predicate> rest = new ArrayList<>();
+      for (Normalized n : branch.values()) {
+        if (!shared.contains(n.key)) {
+          rest.add(n.predicate);
+        }
+      }
+      if (rest.isEmpty()) {
+        // the branch only has the shared children, A OR (A AND B) is A
+        return normalizeWithKey(compound(!conjunction, factors));
+      }
+      rests.add(compound(!conjunction, rest));
+    }
+    factors.add(compound(conjunction, rests));
+
+    // every factoring removes repeated children, so normalizing the result again terminates
+    return normalizeWithKey(compound(!conjunction, factors));
+  }
+
+  private static Predicate compound(boolean conjunction, List<Predicate> predicates) {
+    return conjunction
+        ? new ConjunctionPredicate(predicates)
+        : new DisjunctionPredicate(predicates);
+  }
+
+  private void addChildren(
+      CompoundPredicate predicate, boolean conjunction, Map<String, Normalized> children) {
+    if (predicate.getPredicates() == null) {
+      return;
+    }
+    for (Predicate child : predicate.getPredicates()) {
+      if (isCompound(child, conjunction)) {
+        addChildren((CompoundPredicate) child, conjunction, children);
+        continue;
+      }
+
+      Normalized normalized = normalizeWithKey(child);
+      // a compound with a single child can turn out to be of the same type once unwrapped
+      if (normalized.children != null && isCompound(normalized.predicate, conjunction)) {
+        normalized.children.forEach(c -> children.putIfAbsent(c.key, c));
+      } else {
+        children.putIfAbsent(normalized.key, normalized);
+      }
+    }
+  }
+
+  private static boolean isCompound(Predicate predicate, boolean conjunction) {
+    return conjunction
+        ? predicate instanceof ConjunctionPredicate
+        : predicate instanceof DisjunctionPredicate;
+  }
+
+  private static String leafKey(Predicate predicate) {
+    StringJoiner key = new StringJoiner("|", predicate.getClass().getSimpleName() + "(", ")");
+    if (predicate instanceof SimplePredicate) {
+      SimplePredicate<?> simplePredicate = (SimplePredicate<?>) predicate;
+      key.add(name(simplePredicate.getKey()));
+      key.add(text(simplePredicate.getValue()));
+      key.add(String.valueOf(simplePredicate.isMatchCase()));
+    } else if (predicate instanceof InPredicate) {
+      InPredicate<?> inPredicate = (InPredicate<?>) predicate;
+      key.add(name(inPredicate.getKey()));
+      key.add(String.valueOf(inPredicate.getValues().size()));
+      key.add(String.valueOf(inPredicate.isMatchCase()));
+      inPredicate.getValues().forEach(v -> key.add(text(v)));
+    } else if (predicate instanceof IsNullPredicate) {
+      key.add(name(((IsNullPredicate<?>) predicate).getParameter()));
+    } else if (predicate instanceof IsNotNullPredicate) {
+      key.add(name(((IsNotNullPredicate<?>) predicate).getParameter()));
+    } else if (predicate instanceof RangePredicate) {
+      RangePredicate<?> rangePredicate = (RangePredicate<?>) predicate;
+      key.add(name(rangePredicate.getKey()));
+      key.add(text(rangePredicate.getValue().getGte()));
+      key.add(text(rangePredicate.getValue().getGt()));
+      key.add(text(rangePredicate.getValue().getLte()));
+      key.add(text(rangePredicate.getValue().getLt()));
+    } else if (predicate instanceof WithinPredicate) {
+      key.add(text(((WithinPredicate) predicate).getGeometry()));
+    } else if (predicate instanceof GeoDistancePredicate) {
+      GeoDistancePredicate geoDistancePredicate = (GeoDistancePredicate) predicate;
+      key.add(String.valueOf(geoDistancePredicate.getGeoDistance().getLatitude()));
+      key.add(String.valueOf(geoDistancePredicate.getGeoDistance().getLongitude()));
+      key.add(String.valueOf(geoDistancePredicate.getGeoDistance().getDistance()));
+    } else {
+      key.add(text(String.valueOf(predicate)));
+    }
+
+    String checklistKey = checklistKey(predicate);
+    if (checklistKey != null) {
+      key.add(text(checklistKey));
+    }
+    return key.toString();
+  }
+
+  static String checklistKey(Predicate predicate) {
+    if (predicate instanceof EqualsPredicate) {
+      return ((EqualsPredicate<?>) predicate).getChecklistKey();
+    } else if (predicate instanceof InPredicate) {
+      return ((InPredicate<?>) predicate).getChecklistKey();
+    } else if (predicate instanceof LikePredicate) {
+      return ((LikePredicate<?>) predicate).getChecklistKey();
+    } else if (predicate instanceof IsNullPredicate) {
+      return ((IsNullPredicate<?>) predicate).getChecklistKey();
+    } else if (predicate instanceof IsNotNullPredicate) {
+      return ((IsNotNullPredicate<?>) predicate).getChecklistKey();
+    }
+    return null;
+  }
+
+  /** Length prefixed, so values can't be mistaken for the separators of the key. */
+  private static String text(String value) {
+    return value != null ? value.length() + ":" + value : "null";
+  }
+
+  private static String name(SearchParameter parameter) {
+    return parameter.getClass().getSimpleName() + "." + parameter.name();
+  }
+}
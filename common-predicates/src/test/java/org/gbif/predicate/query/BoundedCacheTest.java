@@ -0,0 +1,99 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.predicate.query;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+
+public class BoundedCacheTest {
+
+  @Test
+  public void testLeastRecentlyUsedEviction() {
+    AtomicInteger loads = new AtomicInteger();
+    BoundedCache<String, String> cache = new BoundedCache<>(2);
+
+    assertEquals("A", cache.get("a", k -> loadUpperCase(k, loads)));
+    assertEquals("B", cache.get("b", k -> loadUpperCase(k, loads)));
+    assertEquals("A", cache.get("a", k -> loadUpperCase(k, loads)));
+    // b is the least recently used
+    assertEquals("C", cache.get("c", k -> loadUpperCase(k, loads)));
+    assertEquals("A", cache.get("a", k -> loadUpperCase(k, loads)));
+    assertEquals("B", cache.get("b", k -> loadUpperCase(k, loads)));
+    assertEquals(4, loads.get());
+
+    BoundedCache.Stats stats = cache.getStats();
+    assertEquals(2, stats.getHits());
+    assertEquals(4, stats.getMisses());
+    assertEquals(2, stats.getEvictions());
+    assertEquals(2, stats.getSize());
+    assertEquals(2, stats.getMaxSize());
+    assertEquals(2.0 / 6, stats.getHitRate());
+  }
+
+  @Test
+  public void testWeightEviction() {
+    AtomicInteger loads = new AtomicInteger();
+    BoundedCache<String, String> cache = new BoundedCache<>(10, 5, (k, v) -> k.length());
+
+    cache.get("aa", k -> loadUpperCase(k, loads));
+    cache.get("bb", k -> loadUpperCase(k, loads));
+    assertEquals(4, cache.getStats().getWeight());
+    // aa is the least recently used, and evicted to make room
+    cache.get("ccc", k -> loadUpperCase(k, loads));
+    assertEquals(2, cache.getStats().getSize());
+    assertEquals(5, cache.getStats().getWeight());
+    assertEquals(1, cache.getStats().getEvictions());
+    cache.get("bb", k -> loadUpperCase(k, loads));
+    assertEquals(3, loads.get());
+
+    // heavier than the whole cache, not cached
+    assertEquals("DDDDDD", cache.get("dddddd", k -> loadUpperCase(k, loads)));
+    assertEquals(2, cache.getStats().getSize());
+    assertEquals(5, cache.getStats().getWeight());
+
+    cache.clear();
+    assertEquals(0, cache.getStats().getWeight());
+  }
+
+  @Test
+  public void testNothingCached() {
+    AtomicInteger loads = new AtomicInteger();
+    BoundedCache<String, String> cache = new BoundedCache<>(0);
+    cache.get("a", k -> loadUpperCase(k, loads));
+    cache.get("a", k -> loadUpperCase(k, loads));
+    assertEquals(2, loads.get());
+    assertEquals(0, cache.getStats().getSize());
+
+    // failed loads aren't cached
+    BoundedCache<String, String> failing = new BoundedCache<>(2);
+    assertThrows(
+        IllegalArgumentException.class,
+        () ->
+            failing.get(
+                "a",
+                k -> {
+                  throw new IllegalArgumentException(k);
+                }));
+    assertEquals(0, failing.getStats().getSize());
+    assertEquals(0.0, new BoundedCache<>(1).getStats().getHitRate());
+  }
+
+  private static String loadUpperCase(String key, AtomicInteger loads) {
+    loads.incrementAndGet();
+    return key.toUpperCase();
+  }
+}
@@ -0,0 +1,202 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.predicate.query;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+import org.gbif.api.model.occurrence.search.OccurrenceSearchParameter;
+import org.gbif.api.model.predicate.ConjunctionPredicate;
+import org.gbif.api.model.predicate.DisjunctionPredicate;
+import org.gbif.api.model.predicate.EqualsPredicate;
+import org.gbif.api.model.predicate.GreaterThanOrEqualsPredicate;
+import org.gbif.api.model.predicate.GreaterThanPredicate;
+import org.gbif.api.model.predicate.InPredicate;
+import org.gbif.api.model.predicate.IsNotNullPredicate;
+import org.gbif.api.model.predicate.IsNullPredicate;
+import org.gbif.api.model.predicate.LessThanOrEqualsPredicate;
+import org.gbif.api.model.predicate.LessThanPredicate;
+import org.gbif.api.model.predicate.LikePredicate;
+import org.gbif.api.model.predicate.Predicate;
+import org.gbif.api.model.predicate.RangePredicate;
+import org.gbif.api.util.RangeValue;
+import org.junit.jupiter.api.Test;
+
+public class ContradictionAnalyzerTest {
+
+  private final ContradictionAnalyzer<OccurrenceSearchParameter> analyzer =
+      new ContradictionAnalyzer<>(
+          p -> p != OccurrenceSearchParameter.ISSUE,
+          p ->
+              p.getKey() == OccurrenceSearchParameter.DEPTH
+                  && p instanceof GreaterThanOrEqualsPredicate);
+
+  private boolean isContradiction(Predicate... predicates) {
+    return analyzer.isContradiction(new ConjunctionPredicate(List.of(predicates)));
+  }
+
+  @Test
+  public void testEquals() {
+    assertTrue(
+        isContradiction(
+            new EqualsPredicate<>(OccurrenceSearchParameter.YEAR, "2000", false),
+            new EqualsPredicate<>(OccurrenceSearchParameter.YEAR, "2001", false)));
+    assertFalse(
+        isContradiction(
+            new EqualsPredicate<>(OccurrenceSearchParameter.YEAR, "2000", false),
+            new EqualsPredicate<>(OccurrenceSearchParameter.YEAR, "2000.0", false)));
+    assertFalse(
+        isContradiction(
+            new EqualsPredicate<>(OccurrenceSearchParameter.YEAR, "2000", false),
+            new EqualsPredicate<>(OccurrenceSearchParameter.MONTH, "2", false)));
+
+    // values are compared ignoring case
+    assertFalse(
+        isContradiction(
+            new EqualsPredicate<>(OccurrenceSearchParameter.CATALOG_NUMBER, "ab", false),
+            new EqualsPredicate<>(OccurrenceSearchParameter.CATALOG_NUMBER, "AB", true)));
+    assertTrue(
+        isContradiction(
+            new EqualsPredicate<>(OccurrenceSearchParameter.CATALOG_NUMBER, "ab", false),
+            new EqualsPredicate<>(OccurrenceSearchParameter.CATALOG_NUMBER, "cd", false)));
+
+    // a record can have many issues
+    assertFalse(
+        isContradiction(
+            new EqualsPredicate<>(OccurrenceSearchParameter.ISSUE, "ZERO_COORDINATE", false),
+            new EqualsPredicate<>(OccurrenceSearchParameter.ISSUE, "COUNTRY_INVALID", false)));
+
+    // checklists are independent
+    assertFalse(
+        isContradiction(
+            new EqualsPredicate<>(OccurrenceSearchParameter.TAXON_KEY, "1", false, "c1"),
+            new EqualsPredicate<>(OccurrenceSearchParameter.TAXON_KEY, "2", false, "c2")));
+  }
+
+  @Test
+  public void testIn() {
+    assertTrue(
+        isContradiction(
+            new InPredicate<>(OccurrenceSearchParameter.COUNTRY, List.of("DK", "SE"), false),
+            new InPredicate<>(OccurrenceSearchParameter.COUNTRY, List.of("NO", "FI"), false)));
+    assertFalse(
+        isContradiction(
+            new InPredicate<>(OccurrenceSearchParameter.COUNTRY, List.of("DK", "SE"), false),
+            new EqualsPredicate<>(OccurrenceSearchParameter.COUNTRY, "se", false)));
+    assertTrue(
+        isContradiction(
+            new InPredicate<>(OccurrenceSearchParameter.MONTH, List.of("1", "2"), false),
+            new GreaterThanPredicate<>(OccurrenceSearchParameter.MONTH, "2")));
+  }
+
+  @Test
+  public void testRanges() {
+    assertTrue(
+        isContradiction(
+            new GreaterThanOrEqualsPredicate<>(OccurrenceSearchParameter.YEAR, "2000"),
+            new LessThanPredicate<>(OccurrenceSearchParameter.YEAR, "2000")));
+    assertFalse(
+        isContradiction(
+            new GreaterThanOrEqualsPredicate<>(OccurrenceSearchParameter.YEAR, "2000"),
+            new LessThanOrEqualsPredicate<>(OccurrenceSearchParameter.YEAR, "2000")));
+    assertTrue(
+        isContradiction(
+            new EqualsPredicate<>(OccurrenceSearchParameter.ELEVATION, "10,20", false),
+            new RangePredicate<>(
+                OccurrenceSearchParameter.ELEVATION, new RangeValue("20.5", null, null, "30"))));
+    assertFalse(
+        isContradiction(
+            new EqualsPredicate<>(OccurrenceSearchParameter.ELEVATION, "10,*", false),
+            new LessThanPredicate<>(OccurrenceSearchParameter.ELEVATION, "1000")));
+
+    // values that aren't numbers are left to the backends
+    assertFalse(
+        isContradiction(
+            new GreaterThanPredicate<>(OccurrenceSearchParameter.YEAR, "abc"),
+            new LessThanPredicate<>(OccurrenceSearchParameter.YEAR, "2000")));
+  }
+
+  @Test
+  public void testDates() {
+    assertTrue(
+        isContradiction(
+            new EqualsPredicate<>(OccurrenceSearchParameter.LAST_INTERPRETED, "2000", false),
+            new EqualsPredicate<>(OccurrenceSearchParameter.LAST_INTERPRETED, "2001-02", false)));
+    assertFalse(
+        isContradiction(
+            new EqualsPredicate<>(OccurrenceSearchParameter.LAST_INTERPRETED, "2000", false),
+            new EqualsPredicate<>(OccurrenceSearchParameter.LAST_INTERPRETED, "2000-02", false)));
+    assertTrue(
+        isContradiction(
+            new GreaterThanPredicate<>(OccurrenceSearchParameter.LAST_INTERPRETED, "2000"),
+            new LessThanOrEqualsPredicate<>(OccurrenceSearchParameter.LAST_INTERPRETED, "2000")));
+    assertTrue(
+        isContradiction(
+            new EqualsPredicate<>(OccurrenceSearchParameter.EVENT_DATE, "2000,2001", false),
+            new EqualsPredicate<>(OccurrenceSearchParameter.EVENT_DATE, "2005", false)));
+    assertFalse(
+        isContradiction(
+            new EqualsPredicate<>(OccurrenceSearchParameter.EVENT_DATE, "2000,2001", false),
+            new EqualsPredicate<>(OccurrenceSearchParameter.EVENT_DATE, "2001-05", false)));
+  }
+
+  @Test
+  public void testNullChecks() {
+    assertTrue(
+        isContradiction(
+            new IsNullPredicate<>(OccurrenceSearchParameter.RECORDED_BY),
+            new EqualsPredicate<>(OccurrenceSearchParameter.RECORDED_BY, "a", false)));
+    assertTrue(
+        isContradiction(
+            new IsNotNullPredicate<>(OccurrenceSearchParameter.ISSUE),
+            new IsNullPredicate<>(OccurrenceSearchParameter.ISSUE)));
+    assertFalse(
+        isContradiction(
+            new IsNotNullPredicate<>(OccurrenceSearchParameter.ISSUE),
+            new EqualsPredicate<>(OccurrenceSearchParameter.ISSUE, "ZERO_COORDINATE", false)));
+
+    // the predicate matches records without a depth too
+    assertFalse(
+        isContradiction(
+            new IsNullPredicate<>(OccurrenceSearchParameter.DEPTH),
+            new GreaterThanOrEqualsPredicate<>(OccurrenceSearchParameter.DEPTH, "10")));
+    assertTrue(
+        isContradiction(
+            new IsNullPredicate<>(OccurrenceSearchParameter.DEPTH),
+            new LessThanPredicate<>(OccurrenceSearchParameter.DEPTH, "10")));
+  }
+
+  @Test
+  public void testNestedPredicates() {
+    assertTrue(
+        isContradiction(
+            new EqualsPredicate<>(OccurrenceSearchParameter.YEAR, "2000", false),
+            new ConjunctionPredicate(
+                List.of(new EqualsPredicate<>(OccurrenceSearchParameter.YEAR, "2001", false)))));
+
+    // only conjunctions are looked into
+    assertFalse(
+        isContradiction(
+            new EqualsPredicate<>(OccurrenceSearchParameter.YEAR, "2000", false),
+            new DisjunctionPredicate(
+                List.of(
+                    new EqualsPredicate<>(OccurrenceSearchParameter.YEAR, "2001", false),
+                    new EqualsPredicate<>(OccurrenceSearchParameter.MONTH, "1", false)))));
+    assertFalse(
+        isContradiction(
+            new EqualsPredicate<>(OccurrenceSearchParameter.CATALOG_NUMBER, "ab", false),
+            new LikePredicate<>(OccurrenceSearchParameter.CATALOG_NUMBER, "c*", false)));
+  }
+}
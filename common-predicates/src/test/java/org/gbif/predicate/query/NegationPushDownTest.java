@@ -0,0 +1,125 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.predicate.query;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import java.util.List;
+import org.gbif.api.model.occurrence.search.OccurrenceSearchParameter;
+import org.gbif.api.model.predicate.ConjunctionPredicate;
+import org.gbif.api.model.predicate.DisjunctionPredicate;
+import org.gbif.api.model.predicate.EqualsPredicate;
+import org.gbif.api.model.predicate.GreaterThanOrEqualsPredicate;
+import org.gbif.api.model.predicate.GreaterThanPredicate;
+import org.gbif.api.model.predicate.IsNotNullPredicate;
+import org.gbif.api.model.predicate.IsNullPredicate;
+import org.gbif.api.model.predicate.LessThanOrEqualsPredicate;
+import org.gbif.api.model.predicate.LessThanPredicate;
+import org.gbif.api.model.predicate.NotPredicate;
+import org.gbif.api.model.predicate.Predicate;
+import org.junit.jupiter.api.Test;
+
+public class NegationPushDownTest {
+
+  private final NegationPushDown<OccurrenceSearchParameter> exact =
+      new NegationPushDown<>(
+          p -> p != OccurrenceSearchParameter.ISSUE,
+          p -> p.getKey() == OccurrenceSearchParameter.DEPTH && p instanceof GreaterThanPredicate,
+          true);
+
+  private final NegationPushDown<OccurrenceSearchParameter> fieldsMustExist =
+      new NegationPushDown<>(p -> p != OccurrenceSearchParameter.ISSUE, p -> false, false);
+
+  private final Predicate a =
+      new EqualsPredicate<>(OccurrenceSearchParameter.CATALOG_NUMBER, "a", false);
+  private final Predicate b = new EqualsPredicate<>(OccurrenceSearchParameter.COUNTRY, "DK", false);
+  private final Predicate lt = new LessThanPredicate<>(OccurrenceSearchParameter.YEAR, "2000");
+  private final Predicate gte =
+      new GreaterThanOrEqualsPredicate<>(OccurrenceSearchParameter.YEAR, "2000");
+
+  @Test
+  public void testNothingToPushDown() {
+    assertNull(exact.pushDown(null));
+    assertSame(a, exact.pushDown(a));
+
+    Predicate p = new ConjunctionPredicate(List.of(a, new NotPredicate(b)));
+    assertSame(p, exact.pushDown(p));
+  }
+
+  @Test
+  public void testComparisons() {
+    assertEquals(gte, exact.pushDown(new NotPredicate(lt)));
+    assertEquals(lt, exact.pushDown(new NotPredicate(gte)));
+    assertEquals(
+        new GreaterThanPredicate<>(OccurrenceSearchParameter.YEAR, "2000"),
+        exact.pushDown(
+            new NotPredicate(
+                new LessThanOrEqualsPredicate<>(OccurrenceSearchParameter.YEAR, "2000"))));
+
+    // a record can have other issues
+    Predicate p =
+        new NotPredicate(new LessThanPredicate<>(OccurrenceSearchParameter.ISSUE, "ZERO"));
+    assertSame(p, exact.pushDown(p));
+
+    // the flipped comparison needs a guard for the records without a depth
+    Predicate depth = new LessThanOrEqualsPredicate<>(OccurrenceSearchParameter.DEPTH, "10");
+    assertEquals(
+        new ConjunctionPredicate(
+            List.of(
+                new GreaterThanPredicate<>(OccurrenceSearchParameter.DEPTH, "10"),
+                new IsNotNullPredicate<>(OccurrenceSearchParameter.DEPTH))),
+        exact.pushDown(new NotPredicate(depth)));
+  }
+
+  @Test
+  public void testNullChecks() {
+    assertEquals(
+        new IsNotNullPredicate<>(OccurrenceSearchParameter.YEAR),
+        exact.pushDown(new NotPredicate(new IsNullPredicate<>(OccurrenceSearchParameter.YEAR))));
+    assertEquals(
+        new IsNullPredicate<>(OccurrenceSearchParameter.YEAR),
+        exact.pushDown(new NotPredicate(new IsNotNullPredicate<>(OccurrenceSearchParameter.YEAR))));
+  }
+
+  @Test
+  public void testDeMorgan() {
+    assertEquals(
+        new ConjunctionPredicate(List.of(new NotPredicate(a), gte)),
+        exact.pushDown(new NotPredicate(new DisjunctionPredicate(List.of(a, lt)))));
+    assertEquals(
+        new DisjunctionPredicate(List.of(new NotPredicate(a), gte)),
+        exact.pushDown(new NotPredicate(new ConjunctionPredicate(List.of(a, lt)))));
+    assertSame(a, exact.pushDown(new NotPredicate(new NotPredicate(a))));
+
+    // nested in other predicates
+    assertEquals(
+        new ConjunctionPredicate(List.of(b, gte)),
+        exact.pushDown(new ConjunctionPredicate(List.of(b, new NotPredicate(lt)))));
+  }
+
+  @Test
+  public void testFieldsMustExist() {
+    assertEquals(
+        new ConjunctionPredicate(List.of(new NotPredicate(a), gte)),
+        fieldsMustExist.pushDown(new NotPredicate(new DisjunctionPredicate(List.of(a, lt)))));
+
+    // negated conjunctions are kept as they are
+    Predicate p = new NotPredicate(new ConjunctionPredicate(List.of(a, new NotPredicate(lt))));
+    assertSame(p, fieldsMustExist.pushDown(p));
+    p = new NotPredicate(new NotPredicate(lt));
+    assertSame(p, fieldsMustExist.pushDown(p));
+  }
+}
@@ -0,0 +1,216 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.predicate.query;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.gbif.api.model.occurrence.search.OccurrenceSearchParameter;
+import org.gbif.api.model.predicate.ConjunctionPredicate;
+import org.gbif.api.model.predicate.DisjunctionPredicate;
+import org.gbif.api.model.predicate.EqualsPredicate;
+import org.gbif.api.model.predicate.GreaterThanPredicate;
+import org.gbif.api.model.predicate.InPredicate;
+import org.gbif.api.model.predicate.IsNullPredicate;
+import org.gbif.api.model.predicate.NotPredicate;
+import org.gbif.api.model.predicate.Predicate;
+import org.junit.jupiter.api.Test;
+
+public class PredicateNormalizerTest {
+
+  private final PredicateNormalizer normalizer = new PredicateNormalizer();
+
+  private final Predicate a =
+      new EqualsPredicate<>(OccurrenceSearchParameter.CATALOG_NUMBER, "a", false);
+  private final Predicate b =
+      new InPredicate<>(OccurrenceSearchParameter.COUNTRY, List.of("DK", "SE"), false);
+  private final Predicate c = new GreaterThanPredicate<>(OccurrenceSearchParameter.YEAR, "2000");
+  private final Predicate d = new IsNullPredicate<>(OccurrenceSearchParameter.MONTH);
+
+  @Test
+  public void testNull() {
+    assertNull(normalizer.normalize(null));
+  }
+
+  @Test
+  public void testLeafIsUnchanged() {
+    assertSame(a, normalizer.normalize(a));
+  }
+
+  @Test
+  public void testFlatten() {
+    Predicate p =
+        new ConjunctionPredicate(
+            List.of(a, new ConjunctionPredicate(List.of(b, new ConjunctionPredicate(List.of(c))))));
+
+    Predicate normalized = normalizer.normalize(p);
+    assertTrue(normalized instanceof ConjunctionPredicate);
+    assertEquals(3, ((ConjunctionPredicate) normalized).getPredicates().size());
+
+    // disjunctions in conjunctions are kept
+    p = new ConjunctionPredicate(List.of(a, new DisjunctionPredicate(List.of(b, c))));
+    normalized = normalizer.normalize(p);
+    assertEquals(2, ((ConjunctionPredicate) normalized).getPredicates().size());
+  }
+
+  @Test
+  public void testUnwrappedCompoundIsFlattened() {
+    // the disjunction only has a conjunction, which belongs to the outer conjunction
+    Predicate p =
+        new ConjunctionPredicate(
+            List.of(a, new DisjunctionPredicate(List.of(new ConjunctionPredicate(List.of(b, c))))));
+    Predicate normalized = normalizer.normalize(p);
+    assertTrue(normalized instanceof ConjunctionPredicate);
+    assertEquals(3, ((ConjunctionPredicate) normalized).getPredicates().size());
+  }
+
+  @Test
+  public void testDuplicates() {
+    Predicate p =
+        new DisjunctionPredicate(
+            List.of(
+                a,
+                b,
+                new EqualsPredicate<>(OccurrenceSearchParameter.CATALOG_NUMBER, "a", false),
+                new DisjunctionPredicate(List.of(b, a))));
+
+    Predicate normalized = normalizer.normalize(p);
+    assertTrue(normalized instanceof DisjunctionPredicate);
+    assertEquals(2, ((DisjunctionPredicate) normalized).getPredicates().size());
+
+    // a different match case isn't a duplicate
+    p =
+        new DisjunctionPredicate(
+            List.of(a, new EqualsPredicate<>(OccurrenceSearchParameter.CATALOG_NUMBER, "a", true)));
+    normalized = normalizer.normalize(p);
+    assertEquals(2, ((DisjunctionPredicate) normalized).getPredicates().size());
+  }
+
+  @Test
+  public void testSingleChild() {
+    assertSame(a, normalizer.normalize(new ConjunctionPredicate(List.of(a))));
+    assertSame(
+        a,
+        normalizer.normalize(
+            new DisjunctionPredicate(List.of(new ConjunctionPredicate(List.of(a, a))))));
+  }
+
+  @Test
+  public void testEmptyCompound() {
+    Predicate conjunction = new ConjunctionPredicate(Collections.emptyList());
+    assertSame(conjunction, normalizer.normalize(conjunction));
+    Predicate disjunction = new DisjunctionPredicate(Collections.emptyList());
+    assertSame(disjunction, normalizer.normalize(disjunction));
+
+    // an empty compound of the same type is flattened away
+    assertSame(
+        a,
+        normalizer.normalize(
+            new ConjunctionPredicate(
+                List.of(a, new ConjunctionPredicate(Collections.emptyList())))));
+    Predicate p = new ConjunctionPredicate(List.of(a, disjunction));
+    assertEquals(2, ((ConjunctionPredicate) normalizer.normalize(p)).getPredicates().size());
+  }
+
+  @Test
+  public void testCanonicalOrder() {
+    Predicate p1 =
+        new ConjunctionPredicate(
+            List.of(a, b, new NotPredicate(new DisjunctionPredicate(List.of(c, d)))));
+    Predicate p2 =
+        new ConjunctionPredicate(
+            List.of(new NotPredicate(new DisjunctionPredicate(List.of(d, c))), b, a));
+
+    List<Predicate> children1 =
+        new ArrayList<>(((ConjunctionPredicate) normalizer.normalize(p1)).getPredicates());
+    List<Predicate> children2 =
+        new ArrayList<>(((ConjunctionPredicate) normalizer.normalize(p2)).getPredicates());
+
+    assertEquals(3, children1.size());
+    assertSame(children1.get(0), children2.get(0));
+    assertSame(children1.get(1), children2.get(1));
+
+    List<Predicate> negated1 =
+        new ArrayList<>(
+            ((DisjunctionPredicate) ((NotPredicate) children1.get(2)).getPredicate())
+                .getPredicates());
+    List<Predicate> negated2 =
+        new ArrayList<>(
+            ((DisjunctionPredicate) ((NotPredicate) children2.get(2)).getPredicate())
+                .getPredicates());
+    assertEquals(negated1, negated2);
+  }
+
+  @Test
+  public void testFactorOut() {
+    // (a AND b) OR (a AND c) OR (d AND a) → a AND (b OR c OR d)
+    Predicate p =
+        new DisjunctionPredicate(
+            List.of(
+                new ConjunctionPredicate(List.of(a, b)),
+                new ConjunctionPredicate(List.of(a, c)),
+                new ConjunctionPredicate(List.of(d, a))));
+
+    Predicate normalized = normalizer.normalize(p);
+    assertEquals(
+        normalizer.normalize(
+            new ConjunctionPredicate(List.of(a, new DisjunctionPredicate(List.of(b, c, d))))),
+        normalized);
+    assertEquals(2, ((ConjunctionPredicate) normalized).getPredicates().size());
+
+    // and the reverse, (a OR b) AND (a OR c) → a OR (b AND c)
+    p =
+        new ConjunctionPredicate(
+            List.of(
+                new DisjunctionPredicate(List.of(a, b)), new DisjunctionPredicate(List.of(a, c))));
+    normalized = normalizer.normalize(p);
+    assertTrue(normalized instanceof DisjunctionPredicate);
+    assertEquals(
+        normalizer.normalize(
+            new DisjunctionPredicate(List.of(a, new ConjunctionPredicate(List.of(b, c))))),
+        normalized);
+
+    // nothing in common
+    p =
+        new DisjunctionPredicate(
+            List.of(
+                new ConjunctionPredicate(List.of(a, b)), new ConjunctionPredicate(List.of(c, d))));
+    normalized = normalizer.normalize(p);
+    assertTrue(normalized instanceof DisjunctionPredicate);
+    assertEquals(2, ((DisjunctionPredicate) normalized).getPredicates().size());
+  }
+
+  @Test
+  public void testAbsorption() {
+    // a OR (a AND b) → a
+    assertSame(
+        a,
+        normalizer.normalize(
+            new DisjunctionPredicate(List.of(a, new ConjunctionPredicate(List.of(a, b))))));
+
+    // (a AND b) OR (b AND c AND a) → a AND b
+    Predicate normalized =
+        normalizer.normalize(
+            new DisjunctionPredicate(
+                List.of(
+                    new ConjunctionPredicate(List.of(a, b)),
+                    new ConjunctionPredicate(List.of(b, c, a)))));
+    assertEquals(normalizer.normalize(new ConjunctionPredicate(List.of(b, a))), normalized);
+  }
+}
@@ -0,0 +1,158 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.predicate.query;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.elasticsearch.index.query.AbstractQueryBuilder;
+import org.elasticsearch.index.query.BoolQueryBuilder;
+import org.elasticsearch.index.query.NestedQueryBuilder;
+import org.elasticsearch.index.query.QueryBuilder;
+
+/**
+ * Removes the bool queries that the query visitor wraps around every predicate, e.g. {@code a AND
+ * b} becomes {@code bool.filter[a, b]} instead of {@code bool.filter[bool.filter[a],
+ * bool.filter[b]]}:
+ *
+ * <ul>
+ *   <li>a bool with a single filter or should clause is replaced by the clause
+ *   <li>the filter and must not clauses of a bool in a filter are merged into the outer bool, if
+ *       it has no should clauses
+ *   <li>the should clauses of a bool in a should are merged into the outer bool, if the should
+ *       clauses of both are required
+ *   <li>the should clauses of a bool in a must not are merged into the outer must not, as {@code
+ *       NOT (a OR b)} is {@code NOT a AND NOT b}
+ *   <li>empty bools in a filter are removed, as they match all the documents
+ * </ul>
+ *
+ * <p>Only bools without a boost, a name or a minimum should match are flattened. Nested queries
+ * are kept as they are, the bools inside them are flattened. The queries are changed in place.
+ */
+public class BoolQueryFlattener {
+
+  /**
+   * Flattens the clauses of a bool query, the bool itself is kept.
+   *
+   * @param bool query to flatten
+   */
+  public void flatten(BoolQueryBuilder bool) {
+    // should clauses are optional in a bool with filter or must clauses, and removing the filter
+    // clauses could make them required
+    boolean shouldRequired = bool.filter().isEmpty() && bool.must().isEmpty();
+    boolean mergeFilters = bool.should().isEmpty();
+
+    List<QueryBuilder> filters = new ArrayList<>();
+    List<QueryBuilder> mustNots = new ArrayList<>();
+    for (QueryBuilder q : bool.filter()) {
+      QueryBuilder f = simplify(q);
+      if (mergeFilters) {
+        addFilter(f, filters, mustNots);
+      } else {
+        filters.add(f);
+      }
+    }
+    for (QueryBuilder q : bool.mustNot()) {
+      addMustNot(simplify(q), mustNots);
+    }
+
+    List<QueryBuilder> shoulds = new ArrayList<>();
+    for (QueryBuilder q : bool.should()) {
+      QueryBuilder s = simplify(q);
+      if (shouldRequired && isShouldOnly(s)) {
+        shoulds.addAll(((BoolQueryBuilder) s).should());
+      } else {
+        shoulds.add(s);
+      }
+    }
+
+    List<QueryBuilder> musts = new ArrayList<>();
+    for (QueryBuilder q : bool.must()) {
+      musts.add(simplify(q));
+    }
+
+    replace(bool.filter(), filters);
+    replace(bool.mustNot(), mustNots);
+    replace(bool.should(), shoulds);
+    replace(bool.must(), musts);
+  }
+
+  /** Flattens a clause, and replaces the bools with a single filter or should clause by it. */
+  private QueryBuilder simplify(QueryBuilder q) {
+    if (q instanceof NestedQueryBuilder) {
+      QueryBuilder nestedQuery = ((NestedQueryBuilder) q).query();
+      if (nestedQuery instanceof BoolQueryBuilder) {
+        flatten((BoolQueryBuilder) nestedQuery);
+      }
+      return q;
+    }
+    if (!(q instanceof BoolQueryBuilder)) {
+      return q;
+    }
+
+    BoolQueryBuilder bool = (BoolQueryBuilder) q;
+    flatten(bool);
+    if (isPlain(bool) && bool.must().isEmpty() && bool.mustNot().isEmpty()) {
+      if (bool.filter().size() == 1 && bool.should().isEmpty()) {
+        return bool.filter().get(0);
+      }
+      if (bool.should().size() == 1 && bool.filter().isEmpty()) {
+        return bool.should().get(0);
+      }
+    }
+    return bool;
+  }
+
+  private void addFilter(QueryBuilder q, List<QueryBuilder> filters, List<QueryBuilder> mustNots) {
+    if (q instanceof BoolQueryBuilder) {
+      BoolQueryBuilder bool = (BoolQueryBuilder) q;
+      if (isPlain(bool) && bool.must().isEmpty() && bool.should().isEmpty()) {
+        filters.addAll(bool.filter());
+        mustNots.addAll(bool.mustNot());
+        return;
+      }
+    }
+    filters.add(q);
+  }
+
+  private void addMustNot(QueryBuilder q, List<QueryBuilder> mustNots) {
+    if (isShouldOnly(q)) {
+      mustNots.addAll(((BoolQueryBuilder) q).should());
+    } else {
+      mustNots.add(q);
+    }
+  }
+
+  static boolean isShouldOnly(QueryBuilder q) {
+    if (!(q instanceof BoolQueryBuilder)) {
+      return false;
+    }
+    BoolQueryBuilder bool = (BoolQueryBuilder) q;
+    return isPlain(bool)
+        && !bool.should().isEmpty()
+        && bool.filter().isEmpty()
+        && bool.must().isEmpty()
+        && bool.mustNot().isEmpty();
+  }
+
+  private static boolean isPlain(BoolQueryBuilder bool) {
+    return bool.boost() == AbstractQueryBuilder.DEFAULT_BOOST
+        && bool.queryName() == null
+        && bool.minimumShouldMatch() == null;
+  }
+
+  private static void replace(List<QueryBuilder> clauses, List<QueryBuilder> flattened) {
+    clauses.clear();
+    clauses.addAll(flattened);
+  }
+}
@@ -44,6 +44,13 @@ public interface EsField {
     return isAutoSuggest() ? getSearchFieldName() + ".suggest" : getSearchFieldName();
   }
 
+  /**
+   * Subfield with the lowercase reversed values of the exact match field, null if there is none.
+   */
+  default String getReversedFieldName() {
+    return null;
+  }
+
   String getNestedPath();
 
   Term getTerm();
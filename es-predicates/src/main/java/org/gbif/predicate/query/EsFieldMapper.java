@@ -1,5 +1,6 @@
 package org.gbif.predicate.query;
 
+import java.util.Date;
 import java.util.List;
 import java.util.Optional;
 import org.elasticsearch.common.Strings;
@@ -8,6 +9,7 @@ import org.elasticsearch.index.query.RangeQueryBuilder;
 import org.elasticsearch.search.sort.FieldSortBuilder;
 import org.gbif.api.model.common.search.SearchParameter;
 import org.gbif.api.model.predicate.SimplePredicate;
+import org.gbif.api.util.IsoDateInterval;
 
 public interface EsFieldMapper<P extends SearchParameter> {
 
@@ -48,6 +50,21 @@ public interface EsFieldMapper<P extends SearchParameter> {
    */
   boolean isTaxonomic(P searchParameter);
 
+  /**
+   * Returns true if the search parameter has at most one value per document, so that e.g. two
+   * equals predicates with different values can't both match. Only numbers and dates outside nested
+   * documents are considered single valued by default, keyword fields can hold arrays.
+   */
+  default boolean isSingleValued(P searchParameter) {
+    Class<?> type = searchParameter.type();
+    return (Number.class.isAssignableFrom(type)
+            || Date.class.isAssignableFrom(type)
+            || IsoDateInterval.class.isAssignableFrom(type))
+        && !isNestedField(searchParameter)
+        && !isTaxonomic(searchParameter)
+        && !isVocabulary(searchParameter);
+  }
+
   /**
    * Adds an "is null" filter if the mapper instructs to do it for the specific predicate. Used
    * mostly in range queries to give specific semantics to null values.
@@ -64,6 +81,17 @@ public interface EsFieldMapper<P extends SearchParameter> {
     return false;
   }
 
+  /**
+   * Returns the name of a field with the reversed values of the exact match field of the search
+   * parameter, indexed with a lowercase and a reverse token filter, or null if there is none. Used
+   * to search case insensitive patterns with a leading wildcard as lowercase prefixes.
+   */
+  default String getReversedFieldName(P searchParameter) {
+    return Optional.ofNullable(getEsField(searchParameter))
+        .map(EsField::getReversedFieldName)
+        .orElse(null);
+  }
+
   EsField getEsField(P parameter);
 
   EsField getEsFacetField(P parameter);
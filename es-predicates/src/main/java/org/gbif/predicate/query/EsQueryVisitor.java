@@ -14,16 +14,21 @@
 package org.gbif.predicate.query;
 
 import java.io.IOException;
-import java.lang.reflect.InvocationTargetException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.Method;
 import java.time.LocalDate;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiFunction;
 import java.util.function.Function;
 import java.util.stream.Collectors;
 import lombok.Data;
+import lombok.Getter;
 import lombok.RequiredArgsConstructor;
+import lombok.Setter;
 import lombok.extern.slf4j.Slf4j;
-import org.apache.lucene.search.join.ScoreMode;
 import org.elasticsearch.common.geo.ShapeRelation;
 import org.elasticsearch.common.geo.builders.CoordinatesBuilder;
 import org.elasticsearch.common.geo.builders.LineStringBuilder;
@@ -34,10 +39,11 @@ import org.elasticsearch.common.geo.builders.ShapeBuilder;
 import org.elasticsearch.index.query.BoolQueryBuilder;
 import org.elasticsearch.index.query.GeoDistanceQueryBuilder;
 import org.elasticsearch.index.query.GeoShapeQueryBuilder;
+import org.elasticsearch.index.query.NestedQueryBuilder;
 import org.elasticsearch.index.query.QueryBuilder;
 import org.elasticsearch.index.query.QueryBuilders;
 import org.elasticsearch.index.query.RangeQueryBuilder;
-import org.elasticsearch.index.query.TermsQueryBuilder;
+import org.elasticsearch.indices.TermsLookup;
 import org.gbif.api.exception.QueryBuildingException;
 import org.gbif.api.model.common.search.SearchParameter;
 import org.gbif.api.model.occurrence.geo.DistanceUnit;
@@ -65,23 +71,155 @@ import org.locationtech.jts.io.WKTReader;
 @Slf4j
 public abstract class EsQueryVisitor<S extends SearchParameter> implements QueryVisitor {
 
+  private static final MethodType VISIT_TYPE =
+      MethodType.methodType(void.class, EsQueryVisitor.class, Object.class, QueryData.class);
+
+  // visit methods per visitor class, keyed by predicate class. Resolved once so overrides in
+  // subclasses are honoured without a reflective lookup for every node of the predicate tree.
+  private static final ClassValue<Map<Class<?>, MethodHandle>> VISIT_METHODS =
+      new ClassValue<Map<Class<?>, MethodHandle>>() {
+        @Override
+        protected Map<Class<?>, MethodHandle> computeValue(Class<?> visitorClass) {
+          return new ConcurrentHashMap<>();
+        }
+      };
+
+  private static final Function<Predicate, String> NO_CHECKLIST_KEY = predicate -> null;
+
+  // checklist key accessors of the predicate classes not known at compile time
+  private static final ClassValue<Function<Predicate, String>> CHECKLIST_KEY_ACCESSORS =
+      new ClassValue<Function<Predicate, String>>() {
+        @Override
+        protected Function<Predicate, String> computeValue(Class<?> predicateClass) {
+          try {
+            MethodHandle getter =
+                MethodHandles.publicLookup()
+                    .findVirtual(
+                        predicateClass, "getChecklistKey", MethodType.methodType(String.class))
+                    .asType(MethodType.methodType(String.class, Predicate.class));
+            return predicate -> {
+              try {
+                return (String) getter.invokeExact(predicate);
+              } catch (Throwable e) {
+                return null;
+              }
+            };
+          } catch (NoSuchMethodException | IllegalAccessException e) {
+            return NO_CHECKLIST_KEY;
+          }
+        }
+      };
+
+  private static final int DEFAULT_GEOMETRY_CACHE_SIZE = 1000;
+
+  // characters of the cached WKT, the geometries take about as much memory again
+  private static final long DEFAULT_GEOMETRY_CACHE_WEIGHT = 32L * 1024 * 1024;
+
+  private static final BoundedCache<String, org.elasticsearch.geometry.Geometry>
+      SHARED_GEOMETRY_CACHE =
+          new BoundedCache<>(
+              DEFAULT_GEOMETRY_CACHE_SIZE,
+              DEFAULT_GEOMETRY_CACHE_WEIGHT,
+              (wkt, geometry) -> wkt.length());
+
   private final EsFieldMapper<S> esFieldMapper;
   private final String defaultChecklistKey;
 
+  private final PredicateNormalizer predicateNormalizer = new PredicateNormalizer();
+
+  private final BoolQueryFlattener boolQueryFlattener = new BoolQueryFlattener();
+
+  private final NestedQueryConsolidator nestedQueryConsolidator = new NestedQueryConsolidator();
+
+  /** Normalizes predicates before translating them, see {@link PredicateNormalizer}. */
+  @Setter
+  private boolean normalizePredicates;
+
+  /** Pushes negations down before translating predicates, see {@link NegationPushDown}. */
+  @Setter
+  private boolean pushDownNegations;
+
+  /**
+   * Translates the conjunctions that can't match any document to a match_none query, see {@link
+   * ContradictionAnalyzer}.
+   */
+  @Setter
+  private boolean detectContradictions;
+
+  /**
+   * Removes the bool queries wrapped around every predicate from the query, see {@link
+   * BoolQueryFlattener}.
+   */
+  @Setter
+  private boolean flattenQueries;
+
+  /**
+   * Merges the nested queries on the same path of each bool query, see {@link
+   * NestedQueryConsolidator}.
+   */
+  @Setter
+  private boolean consolidateNestedQueries;
+
+  /**
+   * Maximum number of values of a terms query, longer lists are split into several terms queries
+   * in a should clause. 0 for no limit, Elasticsearch rejects more than {@code
+   * index.max_terms_count} values, 65,536 by default.
+   */
+  @Setter
+  private int maxTermsCount;
+
+  /**
+   * Maximum number of clauses of the query, {@code indices.query.bool.max_clause_count} in
+   * Elasticsearch. Queries with more clauses throw a {@link QueryBuildingException} instead of
+   * failing in the cluster, see {@link #countClauses(QueryBuilder)}. 0 for no limit.
+   */
+  @Setter
+  private int maxClauseCount;
+
+  /**
+   * Returns a lookup document with the values of a terms query, or null to send the values in the
+   * query. The values are these of an in predicate on the search parameter, or of the equals
+   * predicates of a disjunction. The document has to be indexed by the caller, and is subject to
+   * {@code index.max_terms_count} too.
+   */
+  @Setter
+  private BiFunction<S, List<String>, TermsLookup> termsLookupResolver;
+
+  /**
+   * Geometries of the shape queries of the within predicates by WKT. Shared by all the visitors by
+   * default, and bounded to 1000 geometries and 32 million characters of WKT. A visitor can be
+   * given its own cache, or one of size 0 to parse every geometry.
+   */
+  @Getter
+  @Setter
+  private BoundedCache<String, org.elasticsearch.geometry.Geometry> geometryCache =
+      SHARED_GEOMETRY_CACHE;
+
   private String getChecklistKey(Predicate predicate) {
 
     if (predicate == null) return null;
 
-    Class<?> clazz = predicate.getClass();
-
-    try {
-      Method m = clazz.getMethod("getChecklistKey");
-      String checklistKey = (String) m.invoke(predicate);
-      if (checklistKey != null) return checklistKey;
-      return defaultChecklistKey;
-    } catch (Exception e) {
-      return null;
+    String checklistKey;
+    if (predicate instanceof EqualsPredicate) {
+      checklistKey = ((EqualsPredicate<?>) predicate).getChecklistKey();
+    } else if (predicate instanceof InPredicate) {
+      checklistKey = ((InPredicate<?>) predicate).getChecklistKey();
+    } else if (predicate instanceof IsNullPredicate) {
+      checklistKey = ((IsNullPredicate<?>) predicate).getChecklistKey();
+    } else if (predicate instanceof IsNotNullPredicate) {
+      checklistKey = ((IsNotNullPredicate<?>) predicate).getChecklistKey();
+    } else if (predicate instanceof LikePredicate) {
+      checklistKey = ((LikePredicate<?>) predicate).getChecklistKey();
+    } else {
+      Function<Predicate, String> accessor = CHECKLIST_KEY_ACCESSORS.get(predicate.getClass());
+      if (accessor == NO_CHECKLIST_KEY) {
+        // the predicate doesn't support checklists
+        return null;
+      }
+      checklistKey = accessor.apply(predicate);
     }
+
+    return checklistKey != null ? checklistKey : defaultChecklistKey;
   }
 
   private String getExactMatchFieldName(IsNotNullPredicate<S> predicate) {
@@ -164,13 +302,69 @@ public abstract class EsQueryVisitor<S extends SearchParameter> implements Query
    */
   public Optional<QueryBuilder> getQueryBuilder(Predicate predicate) throws QueryBuildingException {
     if (predicate != null) {
+      if (pushDownNegations) {
+        // a negation also requires the negated fields to exist, which doesn't distribute over
+        // conjunctions
+        predicate =
+            new NegationPushDown<S>(
+                    esFieldMapper::isSingleValued, esFieldMapper::includeNullInPredicate, false)
+                .pushDown(predicate);
+      }
+      if (normalizePredicates) {
+        predicate = predicateNormalizer.normalize(predicate);
+      }
       BoolQueryBuilder queryBuilder = QueryBuilders.boolQuery();
       visit(predicate, new QueryData(queryBuilder));
+      if (flattenQueries) {
+        boolQueryFlattener.flatten(queryBuilder);
+      }
+      if (consolidateNestedQueries) {
+        nestedQueryConsolidator.consolidate(queryBuilder);
+      }
+      if (maxClauseCount > 0) {
+        int clauses = countClauses(queryBuilder);
+        if (clauses > maxClauseCount) {
+          // QueryBuildingException requires an underlying exception
+          throw new QueryBuildingException(
+              new IllegalStateException(
+                  "Query with "
+                      + clauses
+                      + " clauses exceeds the limit of "
+                      + maxClauseCount
+                      + " clauses"));
+        }
+      }
       return Optional.of(queryBuilder);
     }
     return Optional.empty();
   }
 
+  /**
+   * Counts the clauses of the bool queries in a query, including these in nested queries. Terms
+   * queries are a single clause, their values are limited by {@code index.max_terms_count}.
+   *
+   * @param query to count the clauses of
+   * @return number of clauses
+   */
+  public static int countClauses(QueryBuilder query) {
+    if (query instanceof NestedQueryBuilder) {
+      return countClauses(((NestedQueryBuilder) query).query());
+    }
+    if (!(query instanceof BoolQueryBuilder)) {
+      return 0;
+    }
+    BoolQueryBuilder bool = (BoolQueryBuilder) query;
+    int clauses = 0;
+    for (List<QueryBuilder> clauseList :
+        List.of(bool.filter(), bool.must(), bool.mustNot(), bool.should())) {
+      clauses += clauseList.size();
+      for (QueryBuilder q : clauseList) {
+        clauses += countClauses(q);
+      }
+    }
+    return clauses;
+  }
+
   /**
    * handle conjunction predicate
    *
@@ -178,6 +372,12 @@ public abstract class EsQueryVisitor<S extends SearchParameter> implements Query
    * @param queryData data with the root query builder and the nested path
    */
   public void visit(ConjunctionPredicate predicate, QueryData queryData) {
+    // e.g. YEAR = 2000 AND YEAR = 2001, there is no need to query the index
+    if (isContradiction(predicate)) {
+      queryData.queryBuilder.filter(QueryBuilders.matchNoneQuery());
+      return;
+    }
+
     // must query structure is equivalent to AND
     Map<String, List<QueryBuilder>> queriesByNestedPath = new HashMap<>();
     boolean nonNestedQueriesFound = false;
@@ -194,7 +394,8 @@ public abstract class EsQueryVisitor<S extends SearchParameter> implements Query
             .map(p -> (SimplePredicate<S>) p)
             .collect(Collectors.groupingBy(SimplePredicate::getKey));
 
-    Set<Predicate> handledAsMergedRange = new HashSet<>();
+    // identity based, predicates are looked up by reference and hashing them is expensive
+    Set<Predicate> handledAsMergedRange = Collections.newSetFromMap(new IdentityHashMap<>());
 
     // we build the range from all the ranges predicates
     for (Map.Entry<S, List<SimplePredicate<S>>> entry : rangeBoundsByKey.entrySet()) {
@@ -274,12 +475,19 @@ public abstract class EsQueryVisitor<S extends SearchParameter> implements Query
       queryData
           .queryBuilder
           .filter()
-          .add(QueryBuilders.nestedQuery(key, nestedBoolQuery, ScoreMode.None));
+          .add(NestedQueryConsolidator.nestedQuery(key, nestedBoolQuery));
       queryData.nestedPath = !nonNestedQueriesFound ? key : null;
       queryData.rawQueries = nestedBoolQuery.filter();
     }
   }
 
+  private boolean isContradiction(ConjunctionPredicate predicate) {
+    return detectContradictions
+        && new ContradictionAnalyzer<S>(
+                esFieldMapper::isSingleValued, esFieldMapper::includeNullInPredicate)
+            .isContradiction(predicate);
+  }
+
   /**
    * handle disjunction predicate
    *
@@ -289,12 +497,16 @@ public abstract class EsQueryVisitor<S extends SearchParameter> implements Query
   public void visit(DisjunctionPredicate predicate, QueryData queryData) {
     Map<S, List<EqualsPredicate<S>>> equalsPredicatesReplaceableByIn = groupEquals(predicate);
 
+    // identity based, so each child is checked in constant time
+    Set<Predicate> replacedByIn = Collections.newSetFromMap(new IdentityHashMap<>());
+    equalsPredicatesReplaceableByIn.values().forEach(replacedByIn::addAll);
+
     Map<String, List<QueryBuilder>> queriesByNestedPath = new HashMap<>();
     boolean nonNestedQueriesFound = false;
 
     for (Predicate subPredicate : predicate.getPredicates()) {
       try {
-        if (!isReplaceableByInPredicate(subPredicate, equalsPredicatesReplaceableByIn)) {
+        if (!replacedByIn.contains(subPredicate)) {
           BoolQueryBuilder shouldQueryBuilder = QueryBuilders.boolQuery();
           QueryData shouldQueryData = new QueryData(shouldQueryBuilder);
           visit(subPredicate, shouldQueryData);
@@ -308,10 +520,6 @@ public abstract class EsQueryVisitor<S extends SearchParameter> implements Query
             nonNestedQueriesFound = true;
             queryData.queryBuilder.should(q);
           }
-
-          if (subPredicate instanceof SimplePredicate) {
-            equalsPredicatesReplaceableByIn.remove(((SimplePredicate) subPredicate).getKey());
-          }
         }
       } catch (QueryBuildingException ex) {
         throw new RuntimeException(ex);
@@ -323,10 +531,7 @@ public abstract class EsQueryVisitor<S extends SearchParameter> implements Query
       List<QueryBuilder> builders = e.getValue();
       BoolQueryBuilder nestedBoolQuery = QueryBuilders.boolQuery();
       builders.forEach(q -> nestedBoolQuery.should().add(q));
-      queryData
-          .queryBuilder
-          .should()
-          .add(QueryBuilders.nestedQuery(s, nestedBoolQuery, ScoreMode.None));
+      queryData.queryBuilder.should().add(NestedQueryConsolidator.nestedQuery(s, nestedBoolQuery));
       queryData.nestedPath = !nonNestedQueriesFound ? s : null;
       queryData.rawQueries = nestedBoolQuery.should();
     }
@@ -355,8 +560,9 @@ public abstract class EsQueryVisitor<S extends SearchParameter> implements Query
       if (!equalsPredicatesReplaceableByIn.isEmpty()) {
         Map<String, List<QueryBuilder>> replaceableQueriesByNestedPath = new HashMap<>();
         for (InPredicate<S> ep : toInPredicates(equalsPredicatesReplaceableByIn)) {
-          TermsQueryBuilder termsQueryBuilder =
-              QueryBuilders.termsQuery(
+          QueryBuilder termsQueryBuilder =
+              buildTermsQuery(
+                  ep.getKey(),
                   getExactMatchOrVerbatimField(ep),
                   ep.getValues().stream()
                       .map(v -> parseParamValue(v, ep.getKey()))
@@ -381,7 +587,7 @@ public abstract class EsQueryVisitor<S extends SearchParameter> implements Query
           queryData
               .queryBuilder
               .should()
-              .add(QueryBuilders.nestedQuery(key, nestedBoolQuery, ScoreMode.None));
+              .add(NestedQueryConsolidator.nestedQuery(key, nestedBoolQuery));
           queryData.nestedPath = !nonNestedQueriesFound ? key : null;
           queryData.rawQueries = nestedBoolQuery.should();
         }
@@ -389,37 +595,40 @@ public abstract class EsQueryVisitor<S extends SearchParameter> implements Query
     }
   }
 
-  /** Checks if a predicate has in grouped and can be replaced later by a InPredicate. */
-  private boolean isReplaceableByInPredicate(
-      Predicate predicate, Map<S, List<EqualsPredicate<S>>> equalsPredicatesReplaceableByIn) {
-    if (!equalsPredicatesReplaceableByIn.isEmpty() && predicate instanceof EqualsPredicate) {
+  /** Checks if an equals predicate can be grouped with others into an InPredicate. */
+  private boolean isReplaceableByInPredicate(Predicate predicate) {
+    if (predicate instanceof EqualsPredicate) {
       EqualsPredicate<S> equalsPredicate = (EqualsPredicate<S>) predicate;
 
       // check it is not a range predicate e.g. YEAR 2000,*
-      if (SearchTypeValidator.isNumericRange(equalsPredicate.getValue())
-          || SearchTypeValidator.isDateRange(equalsPredicate.getValue())) {
-        return false;
-      }
-
-      return equalsPredicatesReplaceableByIn.containsKey(equalsPredicate.getKey())
-          && equalsPredicatesReplaceableByIn
-              .get(equalsPredicate.getKey())
-              .contains(equalsPredicate);
+      return equalsPredicate.getChecklistKey() == null
+          && !SearchTypeValidator.isNumericRange(equalsPredicate.getValue())
+          && !SearchTypeValidator.isDateRange(equalsPredicate.getValue());
     }
     return false;
   }
 
-  /** Groups all equals predicates by search parameter. */
+  /**
+   * Groups the equals predicates that can be replaced by an InPredicate by search parameter, in a
+   * single pass over the disjunction. Parameters that also have predicates which can't be
+   * replaced are left out, these are all visited one by one.
+   */
   private Map<S, List<EqualsPredicate<S>>> groupEquals(DisjunctionPredicate predicate) {
-    return predicate.getPredicates().stream()
-        .filter(p -> p instanceof EqualsPredicate)
-        .filter(p -> ((EqualsPredicate<?>) p).getChecklistKey() == null)
-        .map(p -> (EqualsPredicate<S>) p)
-        .collect(Collectors.groupingBy(EqualsPredicate::getKey))
-        .entrySet()
-        .stream()
-        .filter(e -> e.getValue().size() > 1)
-        .collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue));
+    Map<S, List<EqualsPredicate<S>>> groups = new LinkedHashMap<>();
+    Set<S> notReplaceableKeys = new HashSet<>();
+    for (Predicate p : predicate.getPredicates()) {
+      if (isReplaceableByInPredicate(p)) {
+        EqualsPredicate<S> equalsPredicate = (EqualsPredicate<S>) p;
+        groups
+            .computeIfAbsent(equalsPredicate.getKey(), k -> new ArrayList<>())
+            .add(equalsPredicate);
+      } else if (p instanceof SimplePredicate) {
+        notReplaceableKeys.add(((SimplePredicate<S>) p).getKey());
+      }
+    }
+    groups.keySet().removeAll(notReplaceableKeys);
+    groups.values().removeIf(g -> g.size() < 2);
+    return groups;
   }
 
   /** Transforms the grouped EqualsPredicates into InPredicates. */
@@ -516,8 +725,7 @@ public abstract class EsQueryVisitor<S extends SearchParameter> implements Query
       queryData
           .queryBuilder
           .filter()
-          .add(
-              QueryBuilders.nestedQuery(esFieldMapper.getNestedPath(parameter), q, ScoreMode.None));
+          .add(NestedQueryConsolidator.nestedQuery(esFieldMapper.getNestedPath(parameter), q));
       queryData.rawQueries = List.of(q);
       queryData.nestedPath = esFieldMapper.getNestedPath(parameter);
     } else {
@@ -660,8 +868,9 @@ public abstract class EsQueryVisitor<S extends SearchParameter> implements Query
       visit(new DisjunctionPredicate(allPredicates), queryData);
     } else {
 
-      TermsQueryBuilder termsQueryBuilder =
-          QueryBuilders.termsQuery(
+      QueryBuilder termsQueryBuilder =
+          buildTermsQuery(
+              parameter,
               getExactMatchOrVerbatimField(predicate),
               predicate.getValues().stream()
                   .map(v -> parseParamValue(v, parameter))
@@ -671,6 +880,30 @@ public abstract class EsQueryVisitor<S extends SearchParameter> implements Query
     }
   }
 
+  /**
+   * Terms query for a list of values. Lists the {@link #termsLookupResolver} has a lookup document
+   * for are a terms lookup query, lists longer than {@link #maxTermsCount} are split into terms
+   * queries in a should clause.
+   */
+  private QueryBuilder buildTermsQuery(S parameter, String field, List<String> values) {
+    if (termsLookupResolver != null) {
+      TermsLookup termsLookup = termsLookupResolver.apply(parameter, values);
+      if (termsLookup != null) {
+        return QueryBuilders.termsLookupQuery(field, termsLookup);
+      }
+    }
+
+    if (maxTermsCount <= 0 || values.size() <= maxTermsCount) {
+      return QueryBuilders.termsQuery(field, values);
+    }
+    BoolQueryBuilder chunks = QueryBuilders.boolQuery();
+    for (int i = 0; i < values.size(); i += maxTermsCount) {
+      List<String> chunk = values.subList(i, Math.min(values.size(), i + maxTermsCount));
+      chunks.should(QueryBuilders.termsQuery(field, new ArrayList<>(chunk)));
+    }
+    return chunks;
+  }
+
   /**
    * handles less than or equals predicate
    *
@@ -710,10 +943,51 @@ public abstract class EsQueryVisitor<S extends SearchParameter> implements Query
    * @param queryData data with the root query builder and the nested path
    */
   public void visit(LikePredicate<S> predicate, QueryData queryData) {
-    addFilterQuery(
-        QueryBuilders.wildcardQuery(getExactMatchOrVerbatimField(predicate), predicate.getValue()),
-        queryData,
-        predicate.getKey());
+    addFilterQuery(buildLikeQuery(predicate), queryData, predicate.getKey());
+  }
+
+  /**
+   * Wildcard queries go through the terms of the field. Patterns without wildcards are term
+   * queries instead, and patterns with a trailing * only are prefix queries. Patterns with a
+   * leading * only are prefix queries on the reversed field, if the mapper has one.
+   */
+  private QueryBuilder buildLikeQuery(LikePredicate<S> predicate) {
+    String field = getExactMatchOrVerbatimField(predicate);
+    String value = predicate.getValue();
+    // taxonomic fields and escaped wildcards are left to the wildcard query
+    if (esFieldMapper.isTaxonomic(predicate.getKey())
+        || value.indexOf('?') >= 0
+        || value.indexOf('\\') >= 0) {
+      return QueryBuilders.wildcardQuery(field, value);
+    }
+
+    int start = 0;
+    while (start < value.length() && value.charAt(start) == '*') {
+      start++;
+    }
+    int end = value.length();
+    while (end > start && value.charAt(end - 1) == '*') {
+      end--;
+    }
+    String literal = value.substring(start, end);
+    if (literal.isEmpty() || literal.indexOf('*') >= 0) {
+      return QueryBuilders.wildcardQuery(field, value);
+    }
+
+    if (start == 0 && end == value.length()) {
+      return QueryBuilders.termQuery(field, literal);
+    } else if (start == 0) {
+      return QueryBuilders.prefixQuery(field, literal);
+    } else if (end == value.length() && !predicate.isMatchCase()) {
+      String reversedField = esFieldMapper.getReversedFieldName(predicate.getKey());
+      if (reversedField != null) {
+        // prefix queries aren't analyzed, the literal is folded like the reversed field is indexed
+        return QueryBuilders.prefixQuery(
+            reversedField,
+            new StringBuilder(literal.toLowerCase(Locale.ROOT)).reverse().toString());
+      }
+    }
+    return QueryBuilders.wildcardQuery(field, value);
   }
 
   /**
@@ -785,6 +1059,17 @@ public abstract class EsQueryVisitor<S extends SearchParameter> implements Query
   }
 
   public GeoShapeQueryBuilder buildGeoShapeQuery(String wkt) {
+    try {
+      return QueryBuilders.geoShapeQuery(
+              esFieldMapper.getGeoShapeField(), geometryCache.get(wkt, EsQueryVisitor::parseShape))
+          .relation(ShapeRelation.WITHIN);
+    } catch (IOException e) {
+      throw new IllegalStateException(e.getMessage(), e);
+    }
+  }
+
+  /** Parses a WKT geometry into the geometry of a shape query. */
+  private static org.elasticsearch.geometry.Geometry parseShape(String wkt) {
     Geometry geometry;
     try {
       geometry = new WKTReader().read(wkt);
@@ -832,14 +1117,7 @@ public abstract class EsQueryVisitor<S extends SearchParameter> implements Query
     } else {
       throw new IllegalArgumentException(type + " shape is not supported");
     }
-
-    try {
-      return QueryBuilders.geoShapeQuery(
-              esFieldMapper.getGeoShapeField(), shapeBuilder.buildGeometry())
-          .relation(ShapeRelation.WITHIN);
-    } catch (IOException e) {
-      throw new IllegalStateException(e.getMessage(), e);
-    }
+    return shapeBuilder.buildGeometry();
   }
 
   /** Eliminates consecutive duplicates. The order is preserved. */
@@ -903,24 +1181,37 @@ public abstract class EsQueryVisitor<S extends SearchParameter> implements Query
   }
 
   private void visit(Object object, QueryData queryData) throws QueryBuildingException {
+    MethodHandle method =
+        VISIT_METHODS.get(getClass()).computeIfAbsent(object.getClass(), this::findVisitMethod);
+    try {
+      method.invokeExact(this, object, queryData);
+    } catch (Error e) {
+      throw e;
+    } catch (Throwable e) {
+      log.info("Exception thrown while building the query", e);
+      throw new QueryBuildingException(e);
+    }
+  }
+
+  /** Resolves the public visit method of this visitor class for the given predicate class. */
+  private MethodHandle findVisitMethod(Class<?> predicateClass) {
     Method method;
     try {
-      method = getClass().getMethod("visit", object.getClass(), QueryData.class);
+      method = getClass().getMethod("visit", predicateClass, QueryData.class);
     } catch (NoSuchMethodException e) {
       log.warn(
           "Visit method could not be found. That means a unknown Predicate has been passed", e);
       throw new IllegalArgumentException("Unknown Predicate", e);
     }
     try {
-      method.invoke(this, object, queryData);
+      // subclasses are not necessarily public
+      method.setAccessible(true);
+      return MethodHandles.lookup().unreflect(method).asType(VISIT_TYPE);
     } catch (IllegalAccessException e) {
       log.error(
           "This error shouldn't occur if all visit methods are public. Probably a programming error",
           e);
       throw new RuntimeException(e);
-    } catch (InvocationTargetException e) {
-      log.info("Exception thrown while building the query", e);
-      throw new QueryBuildingException(e);
     }
   }
 
@@ -930,8 +1221,7 @@ public abstract class EsQueryVisitor<S extends SearchParameter> implements Query
           .queryBuilder
           .filter()
           .add(
-              QueryBuilders.nestedQuery(
-                  esFieldMapper.getNestedPath(searchParameter), q, ScoreMode.None));
+              NestedQueryConsolidator.nestedQuery(esFieldMapper.getNestedPath(searchParameter), q));
       queryData.rawQueries = List.of(q);
       queryData.nestedPath = esFieldMapper.getNestedPath(searchParameter);
     } else {
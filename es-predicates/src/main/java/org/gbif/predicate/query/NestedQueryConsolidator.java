@@ -0,0 +1,174 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.predicate.query;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.apache.lucene.search.join.ScoreMode;
+import org.elasticsearch.index.query.AbstractQueryBuilder;
+import org.elasticsearch.index.query.BoolQueryBuilder;
+import org.elasticsearch.index.query.NestedQueryBuilder;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.index.query.QueryBuilders;
+
+/**
+ * Merges the nested queries on the same path of a bool query, so each path costs a single block
+ * join per clause list:
+ *
+ * <ul>
+ *   <li>{@code nested(a) OR nested(b)} becomes {@code nested(a OR b)}
+ *   <li>{@code NOT nested(a) AND NOT nested(b)} becomes {@code NOT nested(a OR b)}
+ *   <li>repeated filter clauses, like the exists queries of several negations on the same field,
+ *       are kept once
+ * </ul>
+ *
+ * <p>Nested queries in the filter clauses aren't merged: {@code nested(a) AND nested(b)} matches
+ * documents where {@code a} and {@code b} match different nested objects, {@code nested(a AND b)}
+ * only the documents where they match the same one. The visitor already builds a single nested
+ * query for the predicates of a conjunction that have to match the same object.
+ *
+ * <p>Only the nested queries created by {@link #nestedQuery(String, QueryBuilder)} are merged, as
+ * these know their path. Bools with a minimum should match are left as they are. The queries are
+ * changed in place, run the {@link BoolQueryFlattener} first to bring more nested queries into the
+ * same clause list.
+ */
+public class NestedQueryConsolidator {
+
+  /**
+   * Creates a nested query that can be merged with others on the same path.
+   *
+   * @param path of the nested objects
+   * @param query to match the nested objects
+   * @return nested query without scoring
+   */
+  public static NestedQueryBuilder nestedQuery(String path, QueryBuilder query) {
+    return new PathNestedQueryBuilder(path, query);
+  }
+
+  /**
+   * Consolidates the nested queries of a bool query and of all the bool queries in it.
+   *
+   * @param bool query to consolidate
+   */
+  public void consolidate(BoolQueryBuilder bool) {
+    bool.filter().forEach(this::consolidateClause);
+    bool.must().forEach(this::consolidateClause);
+    bool.mustNot().forEach(this::consolidateClause);
+    bool.should().forEach(this::consolidateClause);
+
+    replace(bool.filter(), distinct(bool.filter()));
+    replace(bool.mustNot(), mergeNested(distinct(bool.mustNot())));
+    if (bool.minimumShouldMatch() == null) {
+      replace(bool.should(), mergeNested(distinct(bool.should())));
+    }
+  }
+
+  private void consolidateClause(QueryBuilder q) {
+    if (q instanceof NestedQueryBuilder) {
+      consolidateClause(((NestedQueryBuilder) q).query());
+    } else if (q instanceof BoolQueryBuilder) {
+      consolidate((BoolQueryBuilder) q);
+    }
+  }
+
+  /**
+   * Replaces the nested queries on the same path by a single nested query with a should clause per
+   * query, at the position of the first one.
+   */
+  private static List<QueryBuilder> mergeNested(List<QueryBuilder> clauses) {
+    Map<String, List<QueryBuilder>> queriesByPath = new LinkedHashMap<>();
+    for (QueryBuilder q : clauses) {
+      if (isMergeable(q)) {
+        queriesByPath
+            .computeIfAbsent(((PathNestedQueryBuilder) q).path, k -> new ArrayList<>())
+            .add(q);
+      }
+    }
+
+    List<QueryBuilder> merged = new ArrayList<>();
+    for (QueryBuilder q : clauses) {
+      if (!isMergeable(q)) {
+        merged.add(q);
+        continue;
+      }
+      String path = ((PathNestedQueryBuilder) q).path;
+      List<QueryBuilder> sameQueries = queriesByPath.remove(path);
+      if (sameQueries == null) {
+        // already merged into the first nested query on the path
+        continue;
+      }
+      if (sameQueries.size() == 1) {
+        merged.add(q);
+        continue;
+      }
+
+      BoolQueryBuilder shouldQuery = QueryBuilders.boolQuery();
+      for (QueryBuilder nested : sameQueries) {
+        QueryBuilder inner = ((NestedQueryBuilder) nested).query();
+        if (BoolQueryFlattener.isShouldOnly(inner)) {
+          shouldQuery.should().addAll(((BoolQueryBuilder) inner).should());
+        } else {
+          shouldQuery.should(inner);
+        }
+      }
+      merged.add(nestedQuery(path, shouldQuery));
+    }
+    return merged;
+  }
+
+  private static boolean isMergeable(QueryBuilder q) {
+    if (!(q instanceof PathNestedQueryBuilder)) {
+      return false;
+    }
+    NestedQueryBuilder nested = (NestedQueryBuilder) q;
+    return nested.innerHit() == null
+        && !nested.ignoreUnmapped()
+        && nested.scoreMode() == ScoreMode.None
+        && nested.boost() == AbstractQueryBuilder.DEFAULT_BOOST
+        && nested.queryName() == null;
+  }
+
+  private static List<QueryBuilder> distinct(List<QueryBuilder> clauses) {
+    List<QueryBuilder> distinct = new ArrayList<>(clauses.size());
+    for (QueryBuilder q : clauses) {
+      if (!distinct.contains(q)) {
+        distinct.add(q);
+      }
+    }
+    return distinct;
+  }
+
+  private static void replace(List<QueryBuilder> clauses, List<QueryBuilder> consolidated) {
+    if (clauses.size() != consolidated.size()) {
+      clauses.clear();
+      clauses.addAll(consolidated);
+    }
+  }
+
+  /**
+   * Nested query that keeps its path, the ES builder doesn't expose it. It is serialized as any
+   * other nested query.
+   */
+  private static class PathNestedQueryBuilder extends NestedQueryBuilder {
+
+    private final String path;
+
+    PathNestedQueryBuilder(String path, QueryBuilder query) {
+      super(path, query, ScoreMode.None);
+      this.path = path;
+    }
+  }
+}
@@ -1145,9 +1145,9 @@ public class EventEsQueryVisitorTest {
             + "        \"bool\" : {\n"
             + "          \"filter\" : [\n"
             + "            {\n"
-            + "              \"wildcard\" : {\n"
+            + "              \"prefix\" : {\n"
             + "                \"island.keyword\" : {\n"
-            + "                  \"wildcard\" : \"value_1*\",\n"
+            + "                  \"value\" : \"value_1\",\n"
             + "                  \"boost\" : 1.0\n"
             + "                }\n"
             + "              }\n"
@@ -1339,9 +1339,9 @@ public class EventEsQueryVisitorTest {
             + "                    \"bool\" : {\n"
             + "                      \"filter\" : [\n"
             + "                        {\n"
-            + "                          \"wildcard\" : {\n"
+            + "                          \"prefix\" : {\n"
             + "                            \"island.keyword\" : {\n"
-            + "                              \"wildcard\" : \"value_1*\",\n"
+            + "                              \"value\" : \"value_1\",\n"
             + "                              \"boost\" : 1.0\n"
             + "                            }\n"
             + "                          }\n"
@@ -1474,9 +1474,9 @@ public class EventEsQueryVisitorTest {
             + "                    \"bool\" : {\n"
             + "                      \"filter\" : [\n"
             + "                        {\n"
-            + "                          \"wildcard\" : {\n"
+            + "                          \"prefix\" : {\n"
             + "                            \"island.keyword\" : {\n"
-            + "                              \"wildcard\" : \"value_1*\",\n"
+            + "                              \"value\" : \"value_1\",\n"
             + "                              \"boost\" : 1.0\n"
             + "                            }\n"
             + "                          }\n"
@@ -1629,9 +1629,9 @@ public class EventEsQueryVisitorTest {
             + "              \"bool\" : {\n"
             + "                \"filter\" : [\n"
             + "                  {\n"
-            + "                    \"wildcard\" : {\n"
+            + "                    \"prefix\" : {\n"
             + "                      \"island.keyword\" : {\n"
-            + "                        \"wildcard\" : \"value_1*\",\n"
+            + "                        \"value\" : \"value_1\",\n"
             + "                        \"boost\" : 1.0\n"
             + "                      }\n"
             + "                    }\n"
@@ -2478,9 +2478,9 @@ public class EventEsQueryVisitorTest {
             + "                        \"bool\" : {\n"
             + "                          \"filter\" : [\n"
             + "                            {\n"
-            + "                              \"wildcard\" : {\n"
+            + "                              \"prefix\" : {\n"
             + "                                \"humboldt_compilation_types.keyword\" : {\n"
-            + "                                  \"wildcard\" : \"value_1*\",\n"
+            + "                                  \"value\" : \"value_1\",\n"
             + "                                  \"boost\" : 1.0\n"
             + "                                }\n"
             + "                              }\n"
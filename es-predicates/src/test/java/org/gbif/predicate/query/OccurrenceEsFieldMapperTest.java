@@ -137,6 +137,13 @@ public class OccurrenceEsFieldMapperTest implements EsFieldMapper<OccurrenceSear
             || predicate instanceof GreaterThanPredicate);
   }
 
+  @Override
+  public String getReversedFieldName(OccurrenceSearchParameter searchParameter) {
+    return searchParameter == OccurrenceSearchParameter.CATALOG_NUMBER
+        ? "catalog_number.reversed"
+        : null;
+  }
+
   @Override
   public EsField getEsField(OccurrenceSearchParameter parameter) {
     return null;
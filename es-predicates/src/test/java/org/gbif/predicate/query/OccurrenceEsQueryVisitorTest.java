@@ -14,11 +14,27 @@
 package org.gbif.predicate.query;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.junit.jupiter.api.Assertions.fail;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.stream.Stream;
+import org.elasticsearch.index.query.BoolQueryBuilder;
+import org.elasticsearch.index.query.NestedQueryBuilder;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.index.query.TermsQueryBuilder;
+import org.elasticsearch.indices.TermsLookup;
 import org.gbif.api.exception.QueryBuildingException;
 import org.gbif.api.model.occurrence.search.OccurrenceSearchParameter;
 import org.gbif.api.model.predicate.ConjunctionPredicate;
@@ -39,6 +55,7 @@ import org.gbif.api.model.predicate.RangePredicate;
 import org.gbif.api.model.predicate.WithinPredicate;
 import org.gbif.api.util.RangeValue;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
 
 /** Test cases for the Elasticsearch query visitor. */
 public class OccurrenceEsQueryVisitorTest {
@@ -1118,6 +1135,43 @@ public class OccurrenceEsQueryVisitorTest {
     assertEquals(expectedQuery, query);
   }
 
+  @Test
+  public void testLikeRewrites() throws QueryBuildingException {
+    assertEquals(
+        QueryBuilders.boolQuery()
+            .filter(QueryBuilders.termQuery("catalog_number.keyword", "value_1"))
+            .toString(),
+        visitor.buildQuery(new LikePredicate<>(PARAM, "value_1", false)));
+    assertEquals(
+        QueryBuilders.boolQuery()
+            .filter(QueryBuilders.prefixQuery("catalog_number.verbatim", "Value_1"))
+            .toString(),
+        visitor.buildQuery(new LikePredicate<>(PARAM, "Value_1**", true)));
+    assertEquals(
+        QueryBuilders.boolQuery()
+            .filter(QueryBuilders.prefixQuery("catalog_number.reversed", "1_eulav"))
+            .toString(),
+        visitor.buildQuery(new LikePredicate<>(PARAM, "*value_1", false)));
+    // the reversed field is lowercase
+    assertEquals(
+        QueryBuilders.boolQuery()
+            .filter(QueryBuilders.prefixQuery("catalog_number.reversed", "cba"))
+            .toString(),
+        visitor.buildQuery(new LikePredicate<>(PARAM, "*ABC", false)));
+
+    // without a reversed field, and with wildcards in the middle, the wildcard query stays
+    assertEquals(
+        QueryBuilders.boolQuery()
+            .filter(QueryBuilders.wildcardQuery("catalog_number.verbatim", "*value_1"))
+            .toString(),
+        visitor.buildQuery(new LikePredicate<>(PARAM, "*value_1", true)));
+    assertEquals(
+        QueryBuilders.boolQuery()
+            .filter(QueryBuilders.wildcardQuery("catalog_number.keyword", "val*ue_1*"))
+            .toString(),
+        visitor.buildQuery(new LikePredicate<>(PARAM, "val*ue_1*", false)));
+  }
+
   @Test
   public void testComplexLikePredicate() throws QueryBuildingException {
     Predicate p1 = new EqualsPredicate<>(PARAM, "value_1", false);
@@ -1149,9 +1203,9 @@ public class OccurrenceEsQueryVisitorTest {
             + "        \"bool\" : {\n"
             + "          \"filter\" : [\n"
             + "            {\n"
-            + "              \"wildcard\" : {\n"
+            + "              \"prefix\" : {\n"
             + "                \"catalog_number.keyword\" : {\n"
-            + "                  \"wildcard\" : \"value_1*\",\n"
+            + "                  \"value\" : \"value_1\",\n"
             + "                  \"boost\" : 1.0\n"
             + "                }\n"
             + "              }\n"
@@ -1343,9 +1397,9 @@ public class OccurrenceEsQueryVisitorTest {
             + "                    \"bool\" : {\n"
             + "                      \"filter\" : [\n"
             + "                        {\n"
-            + "                          \"wildcard\" : {\n"
+            + "                          \"prefix\" : {\n"
             + "                            \"catalog_number.keyword\" : {\n"
-            + "                              \"wildcard\" : \"value_1*\",\n"
+            + "                              \"value\" : \"value_1\",\n"
             + "                              \"boost\" : 1.0\n"
             + "                            }\n"
             + "                          }\n"
@@ -1478,9 +1532,9 @@ public class OccurrenceEsQueryVisitorTest {
             + "                    \"bool\" : {\n"
             + "                      \"filter\" : [\n"
             + "                        {\n"
-            + "                          \"wildcard\" : {\n"
+            + "                          \"prefix\" : {\n"
             + "                            \"catalog_number.keyword\" : {\n"
-            + "                              \"wildcard\" : \"value_1*\",\n"
+            + "                              \"value\" : \"value_1\",\n"
             + "                              \"boost\" : 1.0\n"
             + "                            }\n"
             + "                          }\n"
@@ -1633,9 +1687,9 @@ public class OccurrenceEsQueryVisitorTest {
             + "              \"bool\" : {\n"
             + "                \"filter\" : [\n"
             + "                  {\n"
-            + "                    \"wildcard\" : {\n"
+            + "                    \"prefix\" : {\n"
             + "                      \"catalog_number.keyword\" : {\n"
-            + "                        \"wildcard\" : \"value_1*\",\n"
+            + "                        \"value\" : \"value_1\",\n"
             + "                        \"boost\" : 1.0\n"
             + "                      }\n"
             + "                    }\n"
@@ -2812,4 +2866,432 @@ public class OccurrenceEsQueryVisitorTest {
             + "}";
     assertEquals(expectedQuery, query);
   }
+
+  @Test
+  public void testVisitMethodOverride() throws QueryBuildingException {
+    OccurrenceEsQueryVisitor overridingVisitor =
+        new OccurrenceEsQueryVisitor(fieldMapper, "defaultChecklistKey") {
+          @Override
+          public void visit(
+              EqualsPredicate<OccurrenceSearchParameter> predicate, QueryData queryData) {
+            queryData.getQueryBuilder().filter(QueryBuilders.existsQuery("overridden"));
+          }
+        };
+
+    Predicate p =
+        new ConjunctionPredicate(
+            List.of(
+                new EqualsPredicate<>(PARAM, "value", false),
+                new LikePredicate<>(OccurrenceSearchParameter.SCIENTIFIC_NAME, "Puma*", false)));
+
+    String query = overridingVisitor.buildQuery(p);
+    assertTrue(query.contains("\"overridden\""));
+    assertTrue(query.contains("classifications.defaultChecklistKey.usage.name"));
+
+    // the dispatch table is per visitor class
+    assertFalse(visitor.buildQuery(p).contains("\"overridden\""));
+  }
+
+  @Test
+  public void testDisjunctionNotReplaceableKeyKeepsAllPredicates() throws QueryBuildingException {
+    Predicate p =
+        new DisjunctionPredicate(
+            List.of(
+                new EqualsPredicate<>(PARAM, "value_1", false),
+                new EqualsPredicate<>(PARAM, "value_2", false),
+                new LikePredicate<>(PARAM, "value_3*", false)));
+
+    String query = visitor.buildQuery(p);
+    assertTrue(query.contains("\"value_1\""));
+    assertTrue(query.contains("\"value_2\""));
+    assertTrue(query.contains("\"value_3*\""));
+  }
+
+  @Test
+  public void testLargeDisjunctionToSingleTermsQuery() throws QueryBuildingException {
+    int size = 100_000;
+    List<Predicate> predicates = new ArrayList<>(size);
+    Set<String> expected = new HashSet<>(size);
+    for (int i = 0; i < size; i++) {
+      predicates.add(new EqualsPredicate<>(PARAM, "value_" + i, false));
+      expected.add("value_" + i);
+    }
+
+    QueryBuilder query =
+        visitor
+            .getQueryBuilder(new DisjunctionPredicate(predicates))
+            .orElseThrow(AssertionError::new);
+
+    List<QueryBuilder> leaves = new ArrayList<>();
+    collectLeafQueries(query, leaves);
+    assertEquals(1, leaves.size());
+    assertTrue(leaves.get(0) instanceof TermsQueryBuilder);
+
+    TermsQueryBuilder terms = (TermsQueryBuilder) leaves.get(0);
+    assertEquals("catalog_number.keyword", terms.fieldName());
+    assertEquals(size, terms.values().size());
+    assertEquals(expected, new HashSet<>(terms.values()));
+  }
+
+  private static void collectLeafQueries(QueryBuilder query, List<QueryBuilder> leaves) {
+    if (query instanceof BoolQueryBuilder) {
+      BoolQueryBuilder bool = (BoolQueryBuilder) query;
+      Stream.of(bool.must(), bool.filter(), bool.should(), bool.mustNot())
+          .flatMap(List::stream)
+          .forEach(q -> collectLeafQueries(q, leaves));
+    } else {
+      leaves.add(query);
+    }
+  }
+
+  /**
+   * Translation time per child from 1k to 1M children, which stays flat when the grouping is
+   * linear. Run with {@code mvn test -Dbenchmark=true}.
+   */
+  @Test
+  @EnabledIfSystemProperty(named = "benchmark", matches = "true")
+  public void benchmarkLargeDisjunction() throws QueryBuildingException {
+    // warm up
+    bestTimeDisjunction(10_000, 3);
+
+    long[] nanosPerChild = new long[4];
+    int size = 1_000;
+    for (int i = 0; i < nanosPerChild.length; i++, size *= 10) {
+      nanosPerChild[i] = bestTimeDisjunction(size, 5) / size;
+    }
+
+    System.out.println(
+        "Disjunction of 1k to 1M children, ns per child: " + Arrays.toString(nanosPerChild));
+    // a quadratic grouping makes the cost per child a hundred times higher from 1k to 100k children
+    assertTrue(
+        nanosPerChild[2] < 10 * Math.max(nanosPerChild[0], 1), Arrays.toString(nanosPerChild));
+    assertTrue(
+        nanosPerChild[3] < 10 * Math.max(nanosPerChild[1], 1), Arrays.toString(nanosPerChild));
+  }
+
+  /** Best of several translations, so a GC pause or a busy host doesn't count. */
+  private long bestTimeDisjunction(int size, int runs) throws QueryBuildingException {
+    List<Predicate> predicates = new ArrayList<>(size);
+    for (int i = 0; i < size; i++) {
+      predicates.add(new EqualsPredicate<>(PARAM, "value_" + i, false));
+    }
+    DisjunctionPredicate p = new DisjunctionPredicate(predicates);
+
+    long best = Long.MAX_VALUE;
+    for (int run = 0; run < runs; run++) {
+      long start = System.nanoTime();
+      assertTrue(visitor.getQueryBuilder(p).isPresent());
+      best = Math.min(best, System.nanoTime() - start);
+    }
+    return best;
+  }
+
+  @Test
+  public void testNormalizedPredicate() throws QueryBuildingException {
+    Predicate p1 = new EqualsPredicate<>(PARAM, "value_1", false);
+    Predicate p2 = new EqualsPredicate<>(PARAM2, "value_2", false);
+    Predicate p =
+        new ConjunctionPredicate(
+            List.of(
+                p2,
+                new ConjunctionPredicate(List.of(p1, p2)),
+                new DisjunctionPredicate(List.of(p1))));
+
+    OccurrenceEsQueryVisitor normalizingVisitor =
+        new OccurrenceEsQueryVisitor(fieldMapper, "defaultChecklistKey");
+    normalizingVisitor.setNormalizePredicates(true);
+    assertEquals(
+        visitor.buildQuery(new ConjunctionPredicate(List.of(p1, p2))),
+        normalizingVisitor.buildQuery(p));
+  }
+
+  @Test
+  public void testContradiction() throws QueryBuildingException {
+    Predicate p1 = new EqualsPredicate<>(OccurrenceSearchParameter.YEAR, "2000", false);
+    Predicate p2 = new GreaterThanPredicate<>(OccurrenceSearchParameter.YEAR, "2000");
+    Predicate p3 = new EqualsPredicate<>(PARAM, "value_1", false);
+    Predicate p = new ConjunctionPredicate(Arrays.asList(p1, p3, p2));
+
+    OccurrenceEsQueryVisitor detectingVisitor =
+        new OccurrenceEsQueryVisitor(fieldMapper, "defaultChecklistKey");
+    detectingVisitor.setDetectContradictions(true);
+    assertEquals(
+        QueryBuilders.boolQuery().filter(QueryBuilders.matchNoneQuery()).toString(),
+        detectingVisitor.buildQuery(p));
+
+    // keyword fields can have many values
+    Predicate p4 = new EqualsPredicate<>(PARAM, "value_2", false);
+    assertFalse(
+        detectingVisitor
+            .buildQuery(new ConjunctionPredicate(Arrays.asList(p3, p4)))
+            .contains("match_none"));
+
+    // off by default
+    assertFalse(visitor.buildQuery(p).contains("match_none"));
+  }
+
+  @Test
+  public void testNotPredicatePushDown() throws QueryBuildingException {
+    OccurrenceEsQueryVisitor pushingVisitor =
+        new OccurrenceEsQueryVisitor(fieldMapper, "defaultChecklistKey");
+    pushingVisitor.setPushDownNegations(true);
+
+    Predicate p1 = new EqualsPredicate<>(PARAM, "value_1", false);
+    Predicate p2 = new EqualsPredicate<>(PARAM2, "value_2", false);
+    Predicate p3 = new LessThanPredicate<>(OccurrenceSearchParameter.YEAR, "2000");
+    Predicate p4 = new GreaterThanOrEqualsPredicate<>(OccurrenceSearchParameter.YEAR, "2000");
+
+    assertEquals(visitor.buildQuery(p4), pushingVisitor.buildQuery(new NotPredicate(p3)));
+    assertEquals(
+        visitor.buildQuery(new ConjunctionPredicate(Arrays.asList(new NotPredicate(p1), p4))),
+        pushingVisitor.buildQuery(
+            new NotPredicate(new DisjunctionPredicate(Arrays.asList(p1, p3)))));
+
+    // a negated conjunction also requires all its fields to exist, so it is kept
+    Predicate p = new NotPredicate(new ConjunctionPredicate(Arrays.asList(p1, p2)));
+    assertEquals(visitor.buildQuery(p), pushingVisitor.buildQuery(p));
+  }
+
+  @Test
+  public void testFlattenQueries() throws QueryBuildingException {
+    OccurrenceEsQueryVisitor flatteningVisitor =
+        new OccurrenceEsQueryVisitor(fieldMapper, "defaultChecklistKey");
+    flatteningVisitor.setFlattenQueries(true);
+
+    Predicate p1 = new EqualsPredicate<>(PARAM, "value_1", false);
+    Predicate p2 = new EqualsPredicate<>(PARAM2, "value_2", false);
+
+    assertEquals(
+        QueryBuilders.boolQuery()
+            .filter(QueryBuilders.termQuery("catalog_number.keyword", "value_1"))
+            .filter(QueryBuilders.termQuery("institution_code.keyword", "value_2"))
+            .toString(),
+        flatteningVisitor.buildQuery(new ConjunctionPredicate(Arrays.asList(p1, p2))));
+    assertEquals(
+        QueryBuilders.boolQuery()
+            .should(QueryBuilders.termQuery("catalog_number.keyword", "value_1"))
+            .should(QueryBuilders.termQuery("institution_code.keyword", "value_2"))
+            .toString(),
+        flatteningVisitor.buildQuery(new DisjunctionPredicate(Arrays.asList(p1, p2))));
+    assertEquals(
+        QueryBuilders.boolQuery()
+            .filter(QueryBuilders.existsQuery("catalog_number.keyword"))
+            .filter(QueryBuilders.existsQuery("institution_code.keyword"))
+            .mustNot(QueryBuilders.termQuery("catalog_number.keyword", "value_1"))
+            .mustNot(QueryBuilders.termQuery("institution_code.keyword", "value_2"))
+            .toString(),
+        flatteningVisitor.buildQuery(
+            new NotPredicate(new DisjunctionPredicate(Arrays.asList(p1, p2)))));
+
+    // a conjunction with a disjunction keeps the bool of the disjunction
+    Predicate p3 = new LikePredicate<>(PARAM, "value_3*", false);
+    Predicate p =
+        new ConjunctionPredicate(
+            Arrays.asList(p1, new DisjunctionPredicate(Arrays.asList(p2, p3))));
+    assertEquals(
+        QueryBuilders.boolQuery()
+            .filter(QueryBuilders.termQuery("catalog_number.keyword", "value_1"))
+            .filter(
+                QueryBuilders.boolQuery()
+                    .should(QueryBuilders.termQuery("institution_code.keyword", "value_2"))
+                    .should(QueryBuilders.prefixQuery("catalog_number.keyword", "value_3")))
+            .toString(),
+        flatteningVisitor.buildQuery(p));
+    assertTrue(flatteningVisitor.buildQuery(p).length() < visitor.buildQuery(p).length());
+  }
+
+  /** Reports the JSON size of the queries of the other tests with and without flattening. */
+  @Test
+  public void testFlattenedQuerySizes() throws QueryBuildingException {
+    OccurrenceEsQueryVisitor flatteningVisitor =
+        new OccurrenceEsQueryVisitor(fieldMapper, "defaultChecklistKey");
+    flatteningVisitor.setFlattenQueries(true);
+
+    String wkt = "POLYGON ((30 10, 10 20, 20 40, 40 40, 30 10))";
+    Predicate p1 = new EqualsPredicate<>(PARAM, "value_1", false);
+    Predicate p2 = new LikePredicate<>(PARAM, "value_1*", false);
+    Predicate p3 = new EqualsPredicate<>(PARAM2, "value_2", false);
+    Predicate p4 = new WithinPredicate(wkt);
+    Predicate p5 = new InPredicate<>(PARAM, Arrays.asList("value_1", "value_2", "value_3"), false);
+    Predicate p6 = new IsNullPredicate<>(PARAM);
+    Predicate p7 = new GeoDistancePredicate("10", "20", "10km");
+    Predicate p8 =
+        new GreaterThanOrEqualsPredicate<>(
+            OccurrenceSearchParameter.DISTANCE_FROM_CENTROID_IN_METERS, "10");
+    Predicate p9 = new EqualsPredicate<>(OccurrenceSearchParameter.TAXON_KEY, "6", false);
+    Predicate sequenceLength =
+        new DisjunctionPredicate(
+            List.of(
+                new ConjunctionPredicate(
+                    List.of(
+                        new GreaterThanOrEqualsPredicate<>(
+                            OccurrenceSearchParameter.NUCLEOTIDE_SEQUENCE_SEQUENCE_LENGTH, "10"),
+                        new LessThanOrEqualsPredicate<>(
+                            OccurrenceSearchParameter.NUCLEOTIDE_SEQUENCE_SEQUENCE_LENGTH, "20"))),
+                new ConjunctionPredicate(
+                    List.of(
+                        new GreaterThanOrEqualsPredicate<>(
+                            OccurrenceSearchParameter.NUCLEOTIDE_SEQUENCE_SEQUENCE_LENGTH, "20"),
+                        new LessThanOrEqualsPredicate<>(
+                            OccurrenceSearchParameter.NUCLEOTIDE_SEQUENCE_SEQUENCE_LENGTH,
+                            "30")))));
+
+    Map<String, Predicate> corpus = new LinkedHashMap<>();
+    corpus.put("equals", p1);
+    corpus.put("like", p2);
+    corpus.put("in", p5);
+    corpus.put("isNull", p6);
+    corpus.put("within", p4);
+    corpus.put("geoDistance", p7);
+    corpus.put("conjunction", new ConjunctionPredicate(Arrays.asList(p1, p3)));
+    corpus.put("disjunction", new DisjunctionPredicate(Arrays.asList(p1, p3)));
+    corpus.put("not", new NotPredicate(new DisjunctionPredicate(Arrays.asList(p1, p3))));
+    corpus.put(
+        "complexOne",
+        new NotPredicate(
+            new DisjunctionPredicate(
+                Arrays.asList(p1, new ConjunctionPredicate(Arrays.asList(p1, p2, p3))))));
+    corpus.put(
+        "complexTwo",
+        new ConjunctionPredicate(
+            Arrays.asList(
+                new DisjunctionPredicate(Arrays.asList(p1, p3)),
+                new NotPredicate(new ConjunctionPredicate(Arrays.asList(p1, p2))))));
+    corpus.put(
+        "complexThree",
+        new ConjunctionPredicate(
+            Arrays.asList(
+                new DisjunctionPredicate(Arrays.asList(p1, p3, p4)),
+                new ConjunctionPredicate(Arrays.asList(p1, p2)))));
+    corpus.put("taxonOrDistance", new DisjunctionPredicate(Arrays.asList(p9, p8)));
+    corpus.put(
+        "rangeQueries",
+        new ConjunctionPredicate(
+            List.of(
+                new InPredicate<>(
+                    OccurrenceSearchParameter.OCCURRENCE_STATUS, List.of("PRESENT"), false),
+                sequenceLength)));
+
+    long totalSize = 0;
+    long totalFlattenedSize = 0;
+    StringBuilder report = new StringBuilder("JSON size of the queries, unflattened -> flattened");
+    for (Map.Entry<String, Predicate> e : corpus.entrySet()) {
+      int size = visitor.buildQuery(e.getValue()).length();
+      int flattenedSize = flatteningVisitor.buildQuery(e.getValue()).length();
+      assertTrue(flattenedSize <= size, e.getKey());
+
+      totalSize += size;
+      totalFlattenedSize += flattenedSize;
+      report.append(String.format("%n%-16s %6d -> %6d", e.getKey(), size, flattenedSize));
+    }
+    report.append(
+        String.format(
+            "%n%-16s %6d -> %6d (%d%%)",
+            "total",
+            totalSize,
+            totalFlattenedSize,
+            Math.round(100.0 * totalFlattenedSize / totalSize)));
+    System.out.println(report);
+
+    assertTrue(totalFlattenedSize < totalSize, report.toString());
+  }
+
+  @Test
+  public void testConsolidateNestedQueries() throws QueryBuildingException {
+    OccurrenceEsQueryVisitor consolidatingVisitor =
+        new OccurrenceEsQueryVisitor(fieldMapper, "defaultChecklistKey");
+    consolidatingVisitor.setFlattenQueries(true);
+    consolidatingVisitor.setConsolidateNestedQueries(true);
+    OccurrenceEsQueryVisitor flatteningVisitor =
+        new OccurrenceEsQueryVisitor(fieldMapper, "defaultChecklistKey");
+    flatteningVisitor.setFlattenQueries(true);
+
+    Predicate p =
+        new ConjunctionPredicate(
+            Arrays.asList(
+                new NotPredicate(
+                    new LessThanPredicate<>(
+                        OccurrenceSearchParameter.NUCLEOTIDE_SEQUENCE_SEQUENCE_LENGTH, "10")),
+                new NotPredicate(
+                    new GreaterThanPredicate<>(
+                        OccurrenceSearchParameter.NUCLEOTIDE_SEQUENCE_SEQUENCE_LENGTH, "20"))));
+
+    // an exists and a must not per negation
+    assertEquals(4, countNested(flatteningVisitor.buildQuery(p)));
+
+    // a single exists, and the must not clauses in the same nested query
+    Optional<QueryBuilder> consolidated = consolidatingVisitor.getQueryBuilder(p);
+    assertTrue(consolidated.isPresent());
+    BoolQueryBuilder bool = (BoolQueryBuilder) consolidated.get();
+    assertEquals(1, bool.filter().size());
+    assertEquals(1, bool.mustNot().size());
+    NestedQueryBuilder mustNot = (NestedQueryBuilder) bool.mustNot().get(0);
+    assertEquals(2, ((BoolQueryBuilder) mustNot.query()).should().size());
+    assertEquals(2, countNested(bool.toString()));
+
+    // nested queries that must match different objects aren't merged
+    Predicate range =
+        new ConjunctionPredicate(
+            Arrays.asList(
+                new EqualsPredicate<>(PARAM, "value_1", false),
+                new GreaterThanPredicate<>(
+                    OccurrenceSearchParameter.NUCLEOTIDE_SEQUENCE_SEQUENCE_LENGTH, "20"),
+                new NotPredicate(
+                    new LessThanPredicate<>(
+                        OccurrenceSearchParameter.NUCLEOTIDE_SEQUENCE_SEQUENCE_LENGTH, "10"))));
+    assertEquals(flatteningVisitor.buildQuery(range), consolidatingVisitor.buildQuery(range));
+  }
+
+  @Test
+  public void testTermsBudget() throws QueryBuildingException {
+    OccurrenceEsQueryVisitor budgetVisitor =
+        new OccurrenceEsQueryVisitor(fieldMapper, "defaultChecklistKey");
+    budgetVisitor.setMaxTermsCount(2);
+
+    Predicate p = new InPredicate<>(PARAM, Arrays.asList("a", "b", "c", "d", "e"), false);
+    assertEquals(
+        QueryBuilders.boolQuery()
+            .filter(
+                QueryBuilders.boolQuery()
+                    .should(QueryBuilders.termsQuery("catalog_number.keyword", "a", "b"))
+                    .should(QueryBuilders.termsQuery("catalog_number.keyword", "c", "d"))
+                    .should(QueryBuilders.termsQuery("catalog_number.keyword", "e")))
+            .toString(),
+        budgetVisitor.buildQuery(p));
+    assertEquals(4, EsQueryVisitor.countClauses(budgetVisitor.getQueryBuilder(p).get()));
+
+    // short lists are kept in a single terms query
+    Predicate shortList = new InPredicate<>(PARAM, Arrays.asList("a", "b"), false);
+    assertEquals(visitor.buildQuery(shortList), budgetVisitor.buildQuery(shortList));
+
+    TermsLookup lookup = new TermsLookup("lookups", "catalog-numbers", "values");
+    budgetVisitor.setTermsLookupResolver((param, values) -> values.size() > 2 ? lookup : null);
+    assertEquals(
+        QueryBuilders.boolQuery()
+            .filter(QueryBuilders.termsLookupQuery("catalog_number.keyword", lookup))
+            .toString(),
+        budgetVisitor.buildQuery(p));
+    assertEquals(visitor.buildQuery(shortList), budgetVisitor.buildQuery(shortList));
+  }
+
+  @Test
+  public void testClauseBudget() throws QueryBuildingException {
+    OccurrenceEsQueryVisitor budgetVisitor =
+        new OccurrenceEsQueryVisitor(fieldMapper, "defaultChecklistKey");
+    budgetVisitor.setMaxTermsCount(2);
+    Predicate p = new InPredicate<>(PARAM, Arrays.asList("a", "b", "c", "d", "e"), false);
+
+    budgetVisitor.setMaxClauseCount(4);
+    assertEquals(4, EsQueryVisitor.countClauses(budgetVisitor.getQueryBuilder(p).get()));
+
+    budgetVisitor.setMaxClauseCount(3);
+    QueryBuildingException e =
+        assertThrows(QueryBuildingException.class, () -> budgetVisitor.buildQuery(p));
+    assertTrue(e.getCause() instanceof IllegalStateException);
+    assertTrue(e.getCause().getMessage().contains("4 clauses"));
+  }
+
+  private static int countNested(String query) {
+    return query.split("\"nested\"", -1).length - 1;
+  }
 }
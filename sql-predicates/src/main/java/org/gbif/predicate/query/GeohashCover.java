@@ -0,0 +1,172 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.predicate.query;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.locationtech.jts.geom.prep.PreparedGeometry;
+import org.locationtech.jts.geom.prep.PreparedGeometryFactory;
+import org.locationtech.spatial4j.shape.Rectangle;
+
+/**
+ * Covers a geometry with geohash cells, to prefilter the records of a spatial predicate on a
+ * column with the geohash of their coordinates.
+ *
+ * <p>The cells are these that intersect the geometry, boundary included, so every record in the
+ * geometry is in one of them. The resolution is adapted to the geometry: the cover is refined one
+ * character at a time, and the finest one with at most the given number of cells is used.
+ */
+public class GeohashCover {
+
+  // in ASCII order, so geohashes sort like the cells they are in
+  private static final String BASE32 = "0123456789bcdefghjkmnpqrstuvwxyz";
+
+  private static final GeometryFactory GEOMETRY_FACTORY = new GeometryFactory();
+
+  private GeohashCover() {}
+
+  /**
+   * Finds the geohash cells of a geometry.
+   *
+   * @param geometry to cover, in longitude and latitude
+   * @param maxPrecision maximum number of characters of the geohashes
+   * @param maxCells maximum number of cells
+   * @return geohashes of the cells, all of the same length, or null if even the cells of a single
+   *     character are too many
+   */
+  public static List<String> cover(Geometry geometry, int maxPrecision, int maxCells) {
+    PreparedGeometry prepared = PreparedGeometryFactory.prepare(geometry);
+    List<String> cells = refine(prepared, List.of(""));
+    if (cells.size() > maxCells) {
+      return null;
+    }
+
+    for (int precision = 1; precision < maxPrecision; precision++) {
+      List<String> children = refine(prepared, cells);
+      if (children.size() > maxCells) {
+        break;
+      }
+      cells = children;
+    }
+    return cells;
+  }
+
+  /**
+   * Finds the geohash cells of a bounding box.
+   *
+   * @param box to cover, crossing the antimeridian if its minimum longitude is greater than the
+   *     maximum
+   * @param maxPrecision maximum number of characters of the geohashes
+   * @param maxCells maximum number of cells
+   * @return geohashes of the cells, all of the same length, or null if even the cells of a single
+   *     character are too many
+   */
+  public static List<String> cover(Rectangle box, int maxPrecision, int maxCells) {
+    Geometry geometry;
+    if (box.getMinX() <= box.getMaxX()) {
+      geometry =
+          GEOMETRY_FACTORY.toGeometry(
+              new Envelope(box.getMinX(), box.getMaxX(), box.getMinY(), box.getMaxY()));
+    } else {
+      geometry =
+          GEOMETRY_FACTORY
+              .toGeometry(new Envelope(box.getMinX(), 180, box.getMinY(), box.getMaxY()))
+              .union(
+                  GEOMETRY_FACTORY.toGeometry(
+                      new Envelope(-180, box.getMaxX(), box.getMinY(), box.getMaxY())));
+    }
+    return cover(geometry, maxPrecision, maxCells);
+  }
+
+  /** Cells one character longer than the given ones that intersect the geometry. */
+  private static List<String> refine(PreparedGeometry prepared, List<String> cells) {
+    List<String> children = new ArrayList<>();
+    for (String cell : cells) {
+      for (int i = 0; i < BASE32.length(); i++) {
+        String child = cell + BASE32.charAt(i);
+        if (prepared.intersects(GEOMETRY_FACTORY.toGeometry(bounds(child)))) {
+          children.add(child);
+        }
+      }
+    }
+    return children;
+  }
+
+  /**
+   * Next cell of the same length, in the order of the geohashes. All the geohashes in a cell are
+   * between the cell and the next one, so a cell is a range of the geohashes of a column.
+   *
+   * @param geohash of the cell
+   * @return geohash of the next cell, or null if it is the last one
+   */
+  static String next(String geohash) {
+    char[] chars = geohash.toCharArray();
+    for (int i = chars.length - 1; i >= 0; i--) {
+      int bits = BASE32.indexOf(chars[i]);
+      if (bits < 0) {
+        throw new IllegalArgumentException("Invalid geohash: " + geohash);
+      }
+      if (bits < BASE32.length() - 1) {
+        chars[i] = BASE32.charAt(bits + 1);
+        return new String(chars);
+      }
+      chars[i] = BASE32.charAt(0);
+    }
+    return null;
+  }
+
+  /**
+   * Bounds of a geohash cell. The bits of the characters halve the longitude and the latitude
+   * ranges in turn, starting with the longitude.
+   *
+   * @param geohash of the cell
+   * @return longitude and latitude bounds of the cell
+   */
+  static Envelope bounds(String geohash) {
+    double minX = -180;
+    double maxX = 180;
+    double minY = -90;
+    double maxY = 90;
+    boolean longitude = true;
+    for (int i = 0; i < geohash.length(); i++) {
+      int bits = BASE32.indexOf(geohash.charAt(i));
+      if (bits < 0) {
+        throw new IllegalArgumentException("Invalid geohash: " + geohash);
+      }
+      for (int bit = 4; bit >= 0; bit--) {
+        boolean upper = (bits >> bit & 1) == 1;
+        if (longitude) {
+          double mid = (minX + maxX) / 2;
+          if (upper) {
+            minX = mid;
+          } else {
+            maxX = mid;
+          }
+        } else {
+          double mid = (minY + maxY) / 2;
+          if (upper) {
+            minY = mid;
+          } else {
+            maxY = mid;
+          }
+        }
+        longitude = !longitude;
+      }
+    }
+    return new Envelope(minX, maxX, minY, maxY);
+  }
+}
@@ -7,19 +7,28 @@ import static org.gbif.predicate.query.SQLColumnsUtils.HUMBOLDT_TAXON_COLUMNS;
 import static org.gbif.predicate.query.SQLColumnsUtils.isInterpretedUtcDateMilliseconds;
 
 import jakarta.annotation.Nullable;
-import java.lang.reflect.InvocationTargetException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.Method;
+import java.math.BigDecimal;
 import java.time.Instant;
 import java.time.LocalDate;
 import java.time.ZoneOffset;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.Function;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 import java.util.stream.Collectors;
+import lombok.Getter;
 import lombok.RequiredArgsConstructor;
+import lombok.Setter;
 import lombok.extern.slf4j.Slf4j;
 import org.gbif.api.exception.QueryBuildingException;
 import org.gbif.api.model.Constants;
 import org.gbif.api.model.common.search.SearchParameter;
+import org.gbif.api.model.occurrence.geo.DistanceUnit;
 import org.gbif.api.model.occurrence.search.InternalOccurrenceSearchParameter;
 import org.gbif.api.model.occurrence.search.OccurrenceSearchParameter;
 import org.gbif.api.model.predicate.CompoundPredicate;
@@ -47,17 +56,11 @@ import org.gbif.api.util.Range;
 import org.gbif.api.util.SearchTypeValidator;
 import org.gbif.api.util.VocabularyUtils;
 import org.gbif.api.vocabulary.MediaType;
+import org.gbif.api.vocabulary.Rank;
 import org.gbif.dwc.terms.*;
-import org.locationtech.jts.geom.Envelope;
-import org.locationtech.jts.geom.Geometry;
-import org.locationtech.jts.geom.MultiPolygon;
-import org.locationtech.spatial4j.context.jts.DatelineRule;
-import org.locationtech.spatial4j.context.jts.JtsSpatialContextFactory;
-import org.locationtech.spatial4j.io.WKTReader;
+import org.locationtech.spatial4j.context.SpatialContext;
 import org.locationtech.spatial4j.shape.Rectangle;
-import org.locationtech.spatial4j.shape.Shape;
 import org.locationtech.spatial4j.shape.impl.RectangleImpl;
-import org.locationtech.spatial4j.shape.jts.JtsGeometry;
 
 @RequiredArgsConstructor
 @Slf4j
@@ -71,6 +74,7 @@ public class SQLQueryVisitor<S extends SearchParameter> implements QueryVisitor
   private static final String GREATER_THAN_EQUALS_OPERATOR = " >= ";
   private static final String LESS_THAN_OPERATOR = " < ";
   private static final String LESS_THAN_EQUALS_OPERATOR = " <= ";
+  private static final String BETWEEN_OPERATOR = " BETWEEN ";
   private static final String NOT_OPERATOR = "NOT ";
   private static final String LIKE_OPERATOR = " LIKE ";
   private static final String IS_NOT_NULL_OPERATOR = " IS NOT NULL";
@@ -79,6 +83,8 @@ public class SQLQueryVisitor<S extends SearchParameter> implements QueryVisitor
   private static final String IS_NULL_ARRAY_OPERATOR = "(%1$s IS NULL OR size(%1$s) = 0)";
   // where query to execute a select all
   private static final String ALL_QUERY = "true";
+  // where query of a conjunction that can't match any record
+  private static final String FALSE_QUERY = "false";
 
   private static final String SQL_ARRAY_PRE = "ARRAY";
 
@@ -95,6 +101,24 @@ public class SQLQueryVisitor<S extends SearchParameter> implements QueryVisitor
           // GbifTerm.subgenusKey, Excluded as it is not populated by interpretation.
           GbifTerm.speciesKey);
 
+  // backbone key columns that only have taxa of a rank
+  private static final Map<Rank, GbifTerm> RANK_KEYS =
+      Map.of(
+          Rank.KINGDOM,
+          GbifTerm.kingdomKey,
+          Rank.PHYLUM,
+          GbifTerm.phylumKey,
+          Rank.CLASS,
+          GbifTerm.classKey,
+          Rank.ORDER,
+          GbifTerm.orderKey,
+          Rank.FAMILY,
+          GbifTerm.familyKey,
+          Rank.GENUS,
+          GbifTerm.genusKey,
+          Rank.SPECIES,
+          GbifTerm.speciesKey);
+
   // TODO: handle derived taxon params for events
   private static final Set<SearchParameter> TAXON_SEARCH_PARAMETERS =
       Set.of(
@@ -109,10 +133,89 @@ public class SQLQueryVisitor<S extends SearchParameter> implements QueryVisitor
           OccurrenceSearchParameter.TAXON_KEY,
           OccurrenceSearchParameter.ACCEPTED_TAXON_KEY);
 
+  /**
+   * Search parameters of columns with at most one value per record. Kept as an allow-list, so a
+   * new parameter with many values, like the taxonomic issues, isn't compared as a single value.
+   */
+  private static final Set<SearchParameter> SINGLE_VALUED_SEARCH_PARAMETERS =
+      Set.of(
+          OccurrenceSearchParameter.BASIS_OF_RECORD,
+          OccurrenceSearchParameter.CATALOG_NUMBER,
+          OccurrenceSearchParameter.COLLECTION_CODE,
+          OccurrenceSearchParameter.CONTINENT,
+          OccurrenceSearchParameter.COORDINATE_UNCERTAINTY_IN_METERS,
+          OccurrenceSearchParameter.COUNTRY,
+          OccurrenceSearchParameter.CRAWL_ID,
+          OccurrenceSearchParameter.DATASET_KEY,
+          OccurrenceSearchParameter.DAY,
+          OccurrenceSearchParameter.DECIMAL_LATITUDE,
+          OccurrenceSearchParameter.DECIMAL_LONGITUDE,
+          OccurrenceSearchParameter.DEPTH,
+          OccurrenceSearchParameter.DISTANCE_FROM_CENTROID_IN_METERS,
+          OccurrenceSearchParameter.ELEVATION,
+          OccurrenceSearchParameter.END_DAY_OF_YEAR,
+          OccurrenceSearchParameter.EVENT_DATE,
+          OccurrenceSearchParameter.GBIF_ID,
+          OccurrenceSearchParameter.HAS_COORDINATE,
+          OccurrenceSearchParameter.HAS_GEOSPATIAL_ISSUE,
+          OccurrenceSearchParameter.HOSTING_ORGANIZATION_KEY,
+          OccurrenceSearchParameter.INSTALLATION_KEY,
+          OccurrenceSearchParameter.INSTITUTION_CODE,
+          OccurrenceSearchParameter.LAST_INTERPRETED,
+          OccurrenceSearchParameter.LICENSE,
+          OccurrenceSearchParameter.MODIFIED,
+          OccurrenceSearchParameter.MONTH,
+          OccurrenceSearchParameter.OCCURRENCE_ID,
+          OccurrenceSearchParameter.OCCURRENCE_STATUS,
+          OccurrenceSearchParameter.ORGANISM_QUANTITY,
+          OccurrenceSearchParameter.PROTOCOL,
+          OccurrenceSearchParameter.PUBLISHING_COUNTRY,
+          OccurrenceSearchParameter.PUBLISHING_ORG,
+          OccurrenceSearchParameter.RELATIVE_ORGANISM_QUANTITY,
+          OccurrenceSearchParameter.REPATRIATED,
+          OccurrenceSearchParameter.SAMPLE_SIZE_VALUE,
+          OccurrenceSearchParameter.START_DAY_OF_YEAR,
+          OccurrenceSearchParameter.YEAR);
+
   private static final List<GadmTerm> GADM_GIDS =
       List.of(GadmTerm.level0Gid, GadmTerm.level1Gid, GadmTerm.level2Gid, GadmTerm.level3Gid);
 
-  private StringBuilder builder;
+  // ESP is level 0, ESP.1_1 level 1, ESP.1.2_1 level 2 and ESP.1.2.3_1 level 3
+  private static final Pattern GADM_GID_PATTERN =
+      Pattern.compile("[A-Z]{3}(?:((?:\\.\\d+){1,3})_\\d+)?");
+
+  private static final MethodType VISIT_TYPE =
+      MethodType.methodType(
+          void.class, SQLQueryVisitor.class, Object.class, QueryContext.class);
+
+  private static final int DEFAULT_GEOMETRY_CACHE_SIZE = 1000;
+
+  // deeper covers have up to 4^depth cells, mostly too small to skip any contains
+  static final int MAX_WITHIN_INTERIOR_DEPTH = 10;
+
+  private static final int DEFAULT_MAX_WITHIN_INTERIOR_RECTANGLES = 100;
+
+  // estimated bytes of the cached geometries and their WKT
+  private static final long DEFAULT_GEOMETRY_CACHE_WEIGHT = 64L * 1024 * 1024;
+
+  // meridional radius of curvature of the WGS84 ellipsoid at the equator
+  private static final double MIN_EARTH_RADIUS_METERS = 6_335_439;
+
+  private static final BoundedCache<String, WithinGeometry> SHARED_GEOMETRY_CACHE =
+      new BoundedCache<>(
+          DEFAULT_GEOMETRY_CACHE_SIZE,
+          DEFAULT_GEOMETRY_CACHE_WEIGHT,
+          (wkt, geometry) -> wkt.length() + geometry.getWeight());
+
+  // visit methods per visitor class, keyed by predicate class. Resolved once so overrides in
+  // subclasses are honoured without a reflective lookup for every node of the predicate tree.
+  private static final ClassValue<Map<Class<?>, MethodHandle>> VISIT_METHODS =
+      new ClassValue<Map<Class<?>, MethodHandle>>() {
+        @Override
+        protected Map<Class<?>, MethodHandle> computeValue(Class<?> visitorClass) {
+          return new ConcurrentHashMap<>();
+        }
+      };
 
   private final SQLTermsMapper<S> sqlTermsMapper;
 
@@ -121,6 +224,84 @@ public class SQLQueryVisitor<S extends SearchParameter> implements QueryVisitor
   // used when there is a column that exists in more than one table
   private final SQLColumnsUtils sqlColumnsUtils;
 
+  private final PredicateNormalizer predicateNormalizer = new PredicateNormalizer();
+
+  /** Normalizes predicates before translating them, see {@link PredicateNormalizer}. */
+  @Setter
+  private boolean normalizePredicates;
+
+  /**
+   * Ranks of the backbone taxa, to search a taxon key only in the key columns of its rank instead
+   * of all of them. Keys without a rank are searched in all the columns.
+   */
+  @Setter
+  private TaxonRankResolver taxonRankResolver;
+
+  /**
+   * Concept trees of the vocabularies, to search a concept and its descendants in the concept
+   * column instead of scanning the lineage of every record. Concepts that aren't in the trees are
+   * searched in the lineage.
+   */
+  @Setter
+  private VocabularyHierarchy vocabularyHierarchy;
+
+  /** Pushes negations down before translating predicates, see {@link NegationPushDown}. */
+  @Setter
+  private boolean pushDownNegations;
+
+  /**
+   * Translates the conjunctions that can't match any record to {@code false}, see {@link
+   * ContradictionAnalyzer}.
+   */
+  @Setter
+  private boolean detectContradictions;
+
+  /**
+   * Parsed geometries of the within predicates by WKT. Shared by all the visitors by default, and
+   * bounded to 1000 geometries and about 64 MB. A visitor can be given its own cache, or one of
+   * size 0 to parse every geometry.
+   */
+  @Getter
+  @Setter
+  private BoundedCache<String, WithinGeometry> geometryCache = SHARED_GEOMETRY_CACHE;
+
+  /**
+   * Quadtree depth of the rectangles searched inside the within geometries, see {@link
+   * WithinGeometry#getInteriorRectangles(int, int)}. The points in these rectangles match without
+   * calling contains. 0 to always call contains, at most {@value #MAX_WITHIN_INTERIOR_DEPTH}.
+   */
+  private int withinInteriorDepth;
+
+  /**
+   * Maximum number of rectangles searched inside a within geometry, the smallest ones are left
+   * out past it so the query stays short.
+   */
+  @Setter
+  private int maxWithinInteriorRectangles = DEFAULT_MAX_WITHIN_INTERIOR_RECTANGLES;
+
+  /**
+   * Maximum number of bounding boxes added for the parts of a within multipolygon, the parts are
+   * grouped into boxes covering several of them, see {@link
+   * WithinGeometry#getClusteredPartBoundingBoxes(int, double)}. 0 for a box per part.
+   */
+  @Setter
+  private int maxWithinPartBoxes;
+
+  /**
+   * How much larger the area of a box of {@link #maxWithinPartBoxes} can be than the areas of its
+   * parts, before the parts are split into more boxes.
+   */
+  @Setter
+  private double maxWithinPartBoxInflation = 1;
+
+  /**
+   * Maximum number of geohash cells the within and geo distance predicates are prefiltered on,
+   * see {@link SQLTermsMapper#getGeohashColumn()}. The finest cells up to the precision of the
+   * column are used, as long as there are at most this many. 0 for no prefilter.
+   */
+  @Setter
+  private int maxGeohashCells;
+
   public SQLQueryVisitor(
       SQLTermsMapper<S> sqlTermsMapper, String defaultChecklistKey, String disambiguationTable) {
     this.sqlTermsMapper = sqlTermsMapper;
@@ -142,7 +323,8 @@ public class SQLQueryVisitor<S extends SearchParameter> implements QueryVisitor
                   && (param != OccurrenceSearchParameter.GEOMETRY)
                   && (param != OccurrenceSearchParameter.GEOLOGICAL_TIME)
                   && !matchCase) {
-                return toSQLLower(sqlCol);
+                String caseFoldedColumn = sqlTermsMapper.getCaseFoldedColumn(param);
+                return caseFoldedColumn != null ? caseFoldedColumn : toSQLLower(sqlCol);
               }
               return sqlCol;
             })
@@ -221,7 +403,10 @@ public class SQLQueryVisitor<S extends SearchParameter> implements QueryVisitor
           && !"GEOMETRY".equals(param.name())
           && OccurrenceSearchParameter.GEOLOGICAL_TIME != param
           && !matchCase) {
-        return toSQLLower(strVal);
+        // case folded columns are compared with the lowercase value directly
+        return sqlTermsMapper.getCaseFoldedColumn(param) != null
+            ? strVal.toLowerCase(Locale.ROOT)
+            : toSQLLower(strVal);
       }
       return strVal;
     }
@@ -235,63 +420,205 @@ public class SQLQueryVisitor<S extends SearchParameter> implements QueryVisitor
    * @return WHERE clause
    */
   public String buildQuery(Predicate predicate) throws QueryBuildingException {
-    String query = ALL_QUERY;
-    if (predicate != null) { // null predicate means a SELECT ALL
-      builder = new StringBuilder();
-      visit(predicate);
-      query = builder.toString();
+    if (predicate == null) { // null predicate means a SELECT ALL
+      return ALL_QUERY;
+    }
+    if (pushDownNegations) {
+      // Hive negations are exact outside nulls, so conjunctions can be negated too
+      predicate =
+          new NegationPushDown<S>(
+                  this::isSingleValued, sqlTermsMapper::includeNullInPredicate, true)
+              .pushDown(predicate);
     }
+    if (normalizePredicates) {
+      predicate = predicateNormalizer.normalize(predicate);
+    }
+    // the state of a translation lives in its own context, so a visitor can be shared by threads
+    QueryContext context = new QueryContext();
+    visit(predicate, context);
+    return context.toString();
+  }
 
-    // Set to null to prevent old StringBuilders hanging around in case this class is reused
-    // somewhere else
-    builder = null;
-    return query;
+  public void visit(ConjunctionPredicate predicate, QueryContext context)
+      throws QueryBuildingException {
+    // e.g. YEAR = 2000 AND YEAR = 2001, there is no need to scan the table
+    if (isContradiction(predicate)) {
+      context.append(FALSE_QUERY);
+      return;
+    }
+
+    // Comparisons on the same search parameter are intersected into a single range, which is
+    // written where the first of them was:
+    //   A>=1 AND B=2 AND A<=5 AND A<3 → A >= 1 AND A < 3 AND B=2
+    Map<Predicate, MergedRange> mergedRanges = mergeRanges(predicate);
+    if (mergedRanges.isEmpty()) {
+      visitCompoundPredicate(predicate, CONJUNCTION_OPERATOR, context);
+      return;
+    }
+
+    Set<MergedRange> added = Collections.newSetFromMap(new IdentityHashMap<>());
+    context.append('(');
+    boolean first = true;
+    for (Predicate subPredicate : predicate.getPredicates()) {
+      MergedRange range = mergedRanges.get(subPredicate);
+      if (range != null && !added.add(range)) {
+        continue;
+      }
+      if (!first) {
+        context.append(CONJUNCTION_OPERATOR);
+      }
+      first = false;
+      context.append('(');
+      if (range != null) {
+        appendMergedRange(range, context);
+      } else {
+        visit(subPredicate, context);
+      }
+      context.append(')');
+    }
+    context.append(')');
   }
 
-  public void visit(ConjunctionPredicate predicate) throws QueryBuildingException {
-    visitCompoundPredicate(predicate, CONJUNCTION_OPERATOR);
+  /**
+   * Intersects the comparisons of a conjunction per search parameter. Only numbers and dates are
+   * merged, and only parameters with more than one comparison. The returned map is keyed by the
+   * merged comparison predicates, by identity.
+   */
+  private Map<Predicate, MergedRange> mergeRanges(ConjunctionPredicate predicate) {
+    Map<S, MergedRange> rangesByKey = new HashMap<>();
+    Set<S> notMergeable = new HashSet<>();
+    for (Predicate subPredicate : predicate.getPredicates()) {
+      if (!(subPredicate instanceof GreaterThanOrEqualsPredicate
+          || subPredicate instanceof GreaterThanPredicate
+          || subPredicate instanceof LessThanOrEqualsPredicate
+          || subPredicate instanceof LessThanPredicate)) {
+        continue;
+      }
+      SimplePredicate<S> bound = (SimplePredicate<S>) subPredicate;
+      S key = bound.getKey();
+      if (notMergeable.contains(key)) {
+        continue;
+      }
+      MergedRange range = rangesByKey.computeIfAbsent(key, MergedRange::new);
+      if (!range.add(bound)) {
+        notMergeable.add(key);
+        rangesByKey.remove(key);
+      }
+    }
+
+    Map<Predicate, MergedRange> mergedRanges = new IdentityHashMap<>();
+    for (MergedRange range : rangesByKey.values()) {
+      if (range.bounds.size() > 1) {
+        range.bounds.forEach(bound -> mergedRanges.put(bound, range));
+      }
+    }
+    return mergedRanges;
   }
 
-  public void visit(DisjunctionPredicate predicate) throws QueryBuildingException {
-    // See if this disjunction can be simplified into an IN predicate, which is much faster.
-    // We could overcomplicate this:
+  private void appendMergedRange(MergedRange range, QueryContext context) {
+    String field = toSQLField(range.key, true);
+    if (range.lower != null
+        && range.upper != null
+        && range.lowerInclusive
+        && range.upperInclusive) {
+      context
+          .append(field)
+          .append(BETWEEN_OPERATOR)
+          .append(toSQLValue(range.key, range.lower, true))
+          .append(CONJUNCTION_OPERATOR)
+          .append(toSQLValue(range.key, range.upper, true));
+      return;
+    }
+
+    if (range.lower != null) {
+      context
+          .append(field)
+          .append(range.lowerInclusive ? GREATER_THAN_EQUALS_OPERATOR : GREATER_THAN_OPERATOR)
+          .append(toSQLValue(range.key, range.lower, true));
+      if (range.upper != null) {
+        context.append(CONJUNCTION_OPERATOR);
+      }
+    }
+    if (range.upper != null) {
+      context
+          .append(field)
+          .append(range.upperInclusive ? LESS_THAN_EQUALS_OPERATOR : LESS_THAN_OPERATOR)
+          .append(toSQLValue(range.key, range.upper, true));
+    }
+  }
+
+  public void visit(DisjunctionPredicate predicate, QueryContext context)
+      throws QueryBuildingException {
+    // Equals predicates on the same search parameter are grouped into IN predicates, which are
+    // much faster (see visit(InPredicate)):
     //   A=1 OR A=2 OR B=3 OR B=4 OR C>5 → A IN(1,2) OR B IN (3,4) OR C>5
-    // but that's a very unusual query for us, so we just check for
-    // - EqualsPredicates everywhere
-    // - on the same search parameter.
+    // Each IN predicate takes the place of the first equals predicate of its group.
+    Map<List<Object>, List<EqualsPredicate<S>>> groups = new LinkedHashMap<>();
+    for (Predicate subPredicate : predicate.getPredicates()) {
+      List<Object> groupKey = inPredicateGroupKey(subPredicate);
+      if (groupKey != null) {
+        groups
+            .computeIfAbsent(groupKey, k -> new ArrayList<>())
+            .add((EqualsPredicate<S>) subPredicate);
+      }
+    }
+    groups.values().removeIf(group -> group.size() < 2);
 
-    boolean useIn = true;
-    Boolean matchCase = null;
-    List<String> values = new ArrayList<>();
-    S parameter = null;
-    String checklistsKey = null;
+    if (groups.isEmpty()) {
+      visitCompoundPredicate(predicate, DISJUNCTION_OPERATOR, context);
+      return;
+    }
 
+    List<Predicate> subPredicates = new ArrayList<>();
+    Set<List<Object>> added = new HashSet<>();
     for (Predicate subPredicate : predicate.getPredicates()) {
-      if (subPredicate instanceof EqualsPredicate) {
-        EqualsPredicate<S> equalsSubPredicate = (EqualsPredicate<S>) subPredicate;
-        if (parameter == null) {
-          parameter = equalsSubPredicate.getKey();
-          matchCase = equalsSubPredicate.isMatchCase();
-          checklistsKey = getChecklistKey(equalsSubPredicate.getChecklistKey());
-        } else if (parameter != equalsSubPredicate.getKey()
-            || matchCase != equalsSubPredicate.isMatchCase()
-            || !Objects.equals(
-                checklistsKey, getChecklistKey(equalsSubPredicate.getChecklistKey()))) {
-          useIn = false;
-          break;
-        }
-        values.add(equalsSubPredicate.getValue());
-      } else {
-        useIn = false;
-        break;
+      List<Object> groupKey = inPredicateGroupKey(subPredicate);
+      List<EqualsPredicate<S>> group = groupKey != null ? groups.get(groupKey) : null;
+      if (group == null) {
+        subPredicates.add(subPredicate);
+      } else if (added.add(groupKey)) {
+        subPredicates.add(toInPredicate(group));
       }
     }
 
-    if (useIn && OccurrenceSearchParameter.GEOLOGICAL_TIME != parameter) {
-      visit(new InPredicate<>(parameter, values, matchCase, checklistsKey));
+    if (subPredicates.size() == 1) {
+      visit(subPredicates.get(0), context);
     } else {
-      visitCompoundPredicate(predicate, DISJUNCTION_OPERATOR);
+      visitCompoundPredicate(
+          new DisjunctionPredicate(subPredicates), DISJUNCTION_OPERATOR, context);
+    }
+  }
+
+  /**
+   * Equals predicates with the same parameter, match case and checklist key can be grouped into an
+   * IN predicate. Returns null for predicates that can't be grouped.
+   */
+  private List<Object> inPredicateGroupKey(Predicate predicate) {
+    if (!(predicate instanceof EqualsPredicate)) {
+      return null;
+    }
+    EqualsPredicate<S> equalsPredicate = (EqualsPredicate<S>) predicate;
+    S parameter = equalsPredicate.getKey();
+    // geological times, dates and numeric ranges (e.g. 2000,2005) aren't single values
+    if (OccurrenceSearchParameter.GEOLOGICAL_TIME == parameter
+        || Date.class.isAssignableFrom(parameter.type())
+        || (Number.class.isAssignableFrom(parameter.type())
+            && SearchTypeValidator.isNumericRange(equalsPredicate.getValue()))) {
+      return null;
     }
+    return Arrays.asList(
+        parameter,
+        equalsPredicate.isMatchCase(),
+        getChecklistKey(equalsPredicate.getChecklistKey()));
+  }
+
+  private InPredicate<S> toInPredicate(List<EqualsPredicate<S>> equalsPredicates) {
+    EqualsPredicate<S> first = equalsPredicates.get(0);
+    return new InPredicate<>(
+        first.getKey(),
+        equalsPredicates.stream().map(EqualsPredicate::getValue).collect(Collectors.toList()),
+        first.isMatchCase(),
+        getChecklistKey(first.getChecklistKey()));
   }
 
   public Function<Term, String> getArrayFn() {
@@ -303,9 +630,10 @@ public class SQLQueryVisitor<S extends SearchParameter> implements QueryVisitor
   }
 
   /** Supports all parameters incl taxonKey expansion for higher taxa. */
-  public void visit(EqualsPredicate<S> predicate) throws QueryBuildingException {
+  public void visit(EqualsPredicate<S> predicate, QueryContext context)
+      throws QueryBuildingException {
     if (isHumboldtTaxonParameter(predicate.getKey())) {
-      appendHumboldtTaxonFilter(predicate);
+      appendHumboldtTaxonFilter(predicate, context);
     } else if (predicate.getKey() == OccurrenceSearchParameter.TAXON_KEY
         && (predicate.getChecklistKey() == null
             || Constants.NUB_DATASET_KEY
@@ -314,34 +642,35 @@ public class SQLQueryVisitor<S extends SearchParameter> implements QueryVisitor
       // Use the taxonkey, specieskey etc columns as the classification one currently lacks
       // synonyms.
       // (It's also faster.)
-      appendTaxonomicBackboneSingleValueFilter(predicate);
+      appendTaxonomicBackboneSingleValueFilter(predicate, context);
     } else if (TAXON_SEARCH_PARAMETERS.contains(predicate.getKey())) {
-      appendTaxonomicArrayFilter(predicate, GbifInternalTerm.classifications);
+      appendTaxonomicArrayFilter(predicate, GbifInternalTerm.classifications, context);
     } else if (predicate.getKey() == OccurrenceSearchParameter.TAXONOMIC_ISSUE) {
-      appendTaxonomicArrayFilter(predicate, GbifTerm.taxonomicIssue);
+      appendTaxonomicArrayFilter(predicate, GbifTerm.taxonomicIssue, context);
     } else if (predicate.getKey() == OccurrenceSearchParameter.TAXONOMIC_STATUS) {
-      appendTaxonomicSingleValueFilter(predicate, GbifInternalTerm.taxonomicStatuses);
+      appendTaxonomicSingleValueFilter(predicate, GbifInternalTerm.taxonomicStatuses, context);
     } else if (predicate.getKey() == OccurrenceSearchParameter.GADM_GID) {
-      appendGadmFilterList(GADM_GIDS, predicate.getValue());
+      appendGadmFilterList(gadmGidTerms(predicate.getValue()), predicate.getValue(), context);
     } else if (predicate.getKey() == OccurrenceSearchParameter.MEDIA_TYPE) {
       Optional.ofNullable(VocabularyUtils.lookupEnum(predicate.getValue(), MediaType.class))
           .ifPresent(
               mediaType ->
-                  builder.append(
-                      String.format(
-                          getArrayFn().apply(GbifTerm.mediaType), mediaType.name(), true)));
+                  appendArrayContains(GbifTerm.mediaType, List.of(mediaType.name()), context));
     } else if (predicate.getKey() == OccurrenceSearchParameter.ISSUE) {
-      builder.append(
-          String.format(
-              getArrayFn().apply(GbifTerm.issue), predicate.getValue().toUpperCase(), true));
+      appendArrayContains(GbifTerm.issue, List.of(predicate.getValue().toUpperCase()), context);
+    } else if (isSQLArray(predicate.getKey()) && predicate.isMatchCase()) {
+      appendArrayContains(
+          sqlTermsMapper.getTermArray(predicate.getKey()),
+          List.of(predicate.getValue()),
+          context);
     } else if (isSQLArray(predicate.getKey())) {
-      builder.append(
+      context.append(
           String.format(
               getArrayFn().apply(sqlTermsMapper.getTermArray(predicate.getKey())),
               predicate.getValue().replaceAll("'", "\\\\'"),
               predicate.isMatchCase()));
     } else if (sqlTermsMapper.isDenormedTerm(predicate.getKey())) {
-      builder
+      context
           .append("(")
           .append("(")
           .append(toSQLField(predicate.getKey(), predicate.isMatchCase()))
@@ -355,8 +684,14 @@ public class SQLQueryVisitor<S extends SearchParameter> implements QueryVisitor
           .append("))")
           .append(")");
     } else if (SQLColumnsUtils.isVocabulary(term(predicate.getKey()))) {
-      builder.append(
-          String.format(getArrayFn().apply(term(predicate.getKey())), predicate.getValue(), false));
+      Set<String> concepts = vocabularyConcepts(predicate.getKey(), List.of(predicate.getValue()));
+      if (concepts != null) {
+        appendVocabularyConceptFilter(predicate.getKey(), concepts, context);
+      } else {
+        context.append(
+            String.format(
+                getArrayFn().apply(term(predicate.getKey())), predicate.getValue(), false));
+      }
     } else if (Date.class.isAssignableFrom(predicate.getKey().type())) {
       // Dates may contain a range even for an EqualsPredicate (e.g. "2000" or "2000-02")
       // The user's query value is inclusive, but the parsed dateRange is exclusive of the
@@ -366,21 +701,25 @@ public class SQLQueryVisitor<S extends SearchParameter> implements QueryVisitor
       Range<LocalDate> dateRange = IsoDateParsingUtils.parseDateRange(predicate.getValue());
 
       if (dateRange.hasLowerBound() || dateRange.hasUpperBound()) {
-        builder.append('(');
+        context.append('(');
         if (dateRange.hasLowerBound()) {
           visitSimplePredicate(
               predicate,
               GREATER_THAN_EQUALS_OPERATOR,
-              ISO_DATE_FORMATTER.format(dateRange.lowerEndpoint()));
+              ISO_DATE_FORMATTER.format(dateRange.lowerEndpoint()),
+              context);
           if (dateRange.hasUpperBound()) {
-            builder.append(CONJUNCTION_OPERATOR);
+            context.append(CONJUNCTION_OPERATOR);
           }
         }
         if (dateRange.hasUpperBound()) {
           visitSimplePredicate(
-              predicate, LESS_THAN_OPERATOR, ISO_DATE_FORMATTER.format(dateRange.upperEndpoint()));
+              predicate,
+              LESS_THAN_OPERATOR,
+              ISO_DATE_FORMATTER.format(dateRange.upperEndpoint()),
+              context);
         }
-        builder.append(')');
+        context.append(')');
       }
     } else if (IsoDateInterval.class.isAssignableFrom(predicate.getKey().type())) {
       // Dates may contain a range even for an EqualsPredicate (e.g. "2000" or "2000-02")
@@ -392,7 +731,7 @@ public class SQLQueryVisitor<S extends SearchParameter> implements QueryVisitor
 
       if (dateRange.hasLowerBound() || dateRange.hasUpperBound()) {
         // all the stuff here
-        builder.append('(');
+        context.append('(');
         if (dateRange.hasLowerBound()) {
           SimplePredicate predicateGte =
               new EqualsPredicate<>(
@@ -402,9 +741,10 @@ public class SQLQueryVisitor<S extends SearchParameter> implements QueryVisitor
           visitSimplePredicate(
               predicateGte,
               GREATER_THAN_EQUALS_OPERATOR,
-              ISO_DATE_FORMATTER.format(dateRange.lowerEndpoint()));
+              ISO_DATE_FORMATTER.format(dateRange.lowerEndpoint()),
+              context);
           if (dateRange.hasUpperBound()) {
-            builder.append(CONJUNCTION_OPERATOR);
+            context.append(CONJUNCTION_OPERATOR);
           }
         }
         if (dateRange.hasUpperBound()) {
@@ -416,30 +756,31 @@ public class SQLQueryVisitor<S extends SearchParameter> implements QueryVisitor
           visitSimplePredicate(
               predicateLte,
               LESS_THAN_OPERATOR,
-              ISO_DATE_FORMATTER.format(dateRange.upperEndpoint()));
+              ISO_DATE_FORMATTER.format(dateRange.upperEndpoint()),
+              context);
         }
-        builder.append(')');
+        context.append(')');
       }
     } else if (predicate.getKey() == OccurrenceSearchParameter.GEOLOGICAL_TIME) {
       if (SearchTypeValidator.isNumericRange(predicate.getValue())) {
         Range<Double> range = SearchTypeValidator.parseDecimalRange(predicate.getValue());
         if (range.hasLowerBound()) {
-          builder
+          context
               .append(GEOLOGICAL_TIME_GT_COLUMN)
               .append(GREATER_THAN_EQUALS_OPERATOR)
               .append(range.lowerEndpoint());
         }
         if (range.hasUpperBound()) {
           if (range.hasLowerBound()) {
-            builder.append(CONJUNCTION_OPERATOR);
+            context.append(CONJUNCTION_OPERATOR);
           }
-          builder
+          context
               .append(GEOLOGICAL_TIME_LTE_COLUMN)
               .append(LESS_THAN_EQUALS_OPERATOR)
               .append(range.upperEndpoint());
         }
       } else {
-        builder
+        context
             .append(GEOLOGICAL_TIME_GT_COLUMN)
             .append(GREATER_THAN_EQUALS_OPERATOR)
             .append(predicate.getValue())
@@ -449,11 +790,12 @@ public class SQLQueryVisitor<S extends SearchParameter> implements QueryVisitor
             .append(predicate.getValue());
       }
     } else {
-      visitSimplePredicate(predicate, EQUALS_OPERATOR);
+      visitSimplePredicate(predicate, EQUALS_OPERATOR, context);
     }
   }
 
-  public void visit(GreaterThanOrEqualsPredicate<S> predicate) throws QueryBuildingException {
+  public void visit(GreaterThanOrEqualsPredicate<S> predicate, QueryContext context)
+      throws QueryBuildingException {
     if (Date.class.isAssignableFrom(predicate.getKey().type())) {
       // Where the date is a range, consider the "OrEquals" to mean including the whole range.
       // "2000" includes all of 2000.
@@ -461,7 +803,8 @@ public class SQLQueryVisitor<S extends SearchParameter> implements QueryVisitor
       visitSimplePredicate(
           predicate,
           GREATER_THAN_EQUALS_OPERATOR,
-          ISO_DATE_FORMATTER.format(dateRange.lowerEndpoint()));
+          ISO_DATE_FORMATTER.format(dateRange.lowerEndpoint()),
+          context);
     } else if (IsoDateInterval.class.isAssignableFrom(predicate.getKey().type())) {
       // Where the date is a range, consider the "OrEquals" to mean including the whole range.
       // "2000" includes all of 2000.
@@ -472,18 +815,20 @@ public class SQLQueryVisitor<S extends SearchParameter> implements QueryVisitor
       visitSimplePredicate(
           predicateLte,
           GREATER_THAN_EQUALS_OPERATOR,
-          ISO_DATE_FORMATTER.format(dateRange.lowerEndpoint()));
+          ISO_DATE_FORMATTER.format(dateRange.lowerEndpoint()),
+          context);
     } else if (OccurrenceSearchParameter.GEOLOGICAL_TIME == predicate.getKey()) {
-      builder
+      context
           .append(GEOLOGICAL_TIME_GT_COLUMN)
           .append(GREATER_THAN_EQUALS_OPERATOR)
           .append(predicate.getValue());
     } else {
-      visitSimplePredicate(predicate, GREATER_THAN_EQUALS_OPERATOR);
+      visitSimplePredicate(predicate, GREATER_THAN_EQUALS_OPERATOR, context);
     }
   }
 
-  public void visit(GreaterThanPredicate<S> predicate) throws QueryBuildingException {
+  public void visit(GreaterThanPredicate<S> predicate, QueryContext context)
+      throws QueryBuildingException {
     if (Date.class.isAssignableFrom(predicate.getKey().type())) {
       // Where the date is a range, consider the lack of "OrEquals" to mean excluding the whole
       // range.
@@ -492,7 +837,8 @@ public class SQLQueryVisitor<S extends SearchParameter> implements QueryVisitor
       visitSimplePredicate(
           predicate,
           GREATER_THAN_EQUALS_OPERATOR,
-          ISO_DATE_FORMATTER.format(dateRange.upperEndpoint()));
+          ISO_DATE_FORMATTER.format(dateRange.upperEndpoint()),
+          context);
     } else if (IsoDateInterval.class.isAssignableFrom(predicate.getKey().type())) {
       // Where the date is a range, consider the lack of "OrEquals" to mean excluding the whole
       // range.
@@ -504,25 +850,30 @@ public class SQLQueryVisitor<S extends SearchParameter> implements QueryVisitor
       visitSimplePredicate(
           predicateLte,
           GREATER_THAN_EQUALS_OPERATOR,
-          ISO_DATE_FORMATTER.format(dateRange.upperEndpoint()));
+          ISO_DATE_FORMATTER.format(dateRange.upperEndpoint()),
+          context);
 
     } else if (OccurrenceSearchParameter.GEOLOGICAL_TIME == predicate.getKey()) {
-      builder
+      context
           .append(GEOLOGICAL_TIME_LTE_COLUMN)
           .append(GREATER_THAN_OPERATOR)
           .append(predicate.getValue());
     } else {
-      visitSimplePredicate(predicate, GREATER_THAN_OPERATOR);
+      visitSimplePredicate(predicate, GREATER_THAN_OPERATOR, context);
     }
   }
 
-  public void visit(LessThanOrEqualsPredicate<S> predicate) throws QueryBuildingException {
+  public void visit(LessThanOrEqualsPredicate<S> predicate, QueryContext context)
+      throws QueryBuildingException {
     if (Date.class.isAssignableFrom(predicate.getKey().type())) {
       // Where the date is a range, consider the "OrEquals" to mean including the whole range.
       // "2000" includes all of 2000, so the latest date is 2001-01-01 (not inclusive).
       Range<LocalDate> dateRange = IsoDateParsingUtils.parseDateRange(predicate.getValue());
       visitSimplePredicate(
-          predicate, LESS_THAN_OPERATOR, ISO_DATE_FORMATTER.format(dateRange.upperEndpoint()));
+          predicate,
+          LESS_THAN_OPERATOR,
+          ISO_DATE_FORMATTER.format(dateRange.upperEndpoint()),
+          context);
     } else if (IsoDateInterval.class.isAssignableFrom(predicate.getKey().type())) {
       // Where the date is a range, consider the "OrEquals" to mean including the whole range.
       // "2000" includes all of 2000, so the latest date is 2001-01-01 (not inclusive).
@@ -531,25 +882,32 @@ public class SQLQueryVisitor<S extends SearchParameter> implements QueryVisitor
           new LessThanOrEqualsPredicate<>(
               InternalOccurrenceSearchParameter.EVENT_DATE_GTE, predicate.getValue());
       visitSimplePredicate(
-          predicateGte, LESS_THAN_OPERATOR, ISO_DATE_FORMATTER.format(dateRange.upperEndpoint()));
+          predicateGte,
+          LESS_THAN_OPERATOR,
+          ISO_DATE_FORMATTER.format(dateRange.upperEndpoint()),
+          context);
     } else if (OccurrenceSearchParameter.GEOLOGICAL_TIME == predicate.getKey()) {
-      builder
+      context
           .append(GEOLOGICAL_TIME_LTE_COLUMN)
           .append(LESS_THAN_EQUALS_OPERATOR)
           .append(predicate.getValue());
     } else {
-      visitSimplePredicate(predicate, LESS_THAN_EQUALS_OPERATOR);
+      visitSimplePredicate(predicate, LESS_THAN_EQUALS_OPERATOR, context);
     }
   }
 
-  public void visit(LessThanPredicate<S> predicate) throws QueryBuildingException {
+  public void visit(LessThanPredicate<S> predicate, QueryContext context)
+      throws QueryBuildingException {
     if (Date.class.isAssignableFrom(predicate.getKey().type())) {
       // Where the date is a range, consider the lack of "OrEquals" to mean excluding the whole
       // range.
       // "2000" excludes all of 2000, so the latest date is 2000-01-01 (not inclusive).
       Range<LocalDate> dateRange = IsoDateParsingUtils.parseDateRange(predicate.getValue());
       visitSimplePredicate(
-          predicate, LESS_THAN_OPERATOR, ISO_DATE_FORMATTER.format(dateRange.lowerEndpoint()));
+          predicate,
+          LESS_THAN_OPERATOR,
+          ISO_DATE_FORMATTER.format(dateRange.lowerEndpoint()),
+          context);
     } else if (IsoDateInterval.class.isAssignableFrom(predicate.getKey().type())) {
       // Where the date is a range, consider the lack of "OrEquals" to mean excluding the whole
       // range.
@@ -559,44 +917,52 @@ public class SQLQueryVisitor<S extends SearchParameter> implements QueryVisitor
           new LessThanPredicate<>(
               InternalOccurrenceSearchParameter.EVENT_DATE_GTE, predicate.getValue());
       visitSimplePredicate(
-          predicateGte, LESS_THAN_OPERATOR, ISO_DATE_FORMATTER.format(dateRange.lowerEndpoint()));
+          predicateGte,
+          LESS_THAN_OPERATOR,
+          ISO_DATE_FORMATTER.format(dateRange.lowerEndpoint()),
+          context);
     } else if (OccurrenceSearchParameter.GEOLOGICAL_TIME == predicate.getKey()) {
-      builder
+      context
           .append(GEOLOGICAL_TIME_GT_COLUMN)
           .append(LESS_THAN_OPERATOR)
           .append(predicate.getValue());
     } else {
-      visitSimplePredicate(predicate, LESS_THAN_OPERATOR);
+      visitSimplePredicate(predicate, LESS_THAN_OPERATOR, context);
     }
   }
 
-  public void visit(RangePredicate<S> predicate) throws QueryBuildingException {
-    builder.append("((");
+  public void visit(RangePredicate<S> predicate, QueryContext context)
+      throws QueryBuildingException {
+    context.append("((");
 
     if (!Objects.isNull(predicate.getValue().getGte())) {
       visitSimplePredicate(
           new LessThanOrEqualsPredicate<>(predicate.getKey(), predicate.getValue().getGte()),
-          GREATER_THAN_EQUALS_OPERATOR);
+          GREATER_THAN_EQUALS_OPERATOR,
+          context);
     } else {
       visitSimplePredicate(
           new LessThanPredicate<>(predicate.getKey(), predicate.getValue().getGt()),
-          GREATER_THAN_OPERATOR);
+          GREATER_THAN_OPERATOR,
+          context);
     }
 
-    builder.append(")");
-    builder.append(CONJUNCTION_OPERATOR);
-    builder.append("(");
+    context.append(")");
+    context.append(CONJUNCTION_OPERATOR);
+    context.append("(");
 
     if (!Objects.isNull(predicate.getValue().getLte())) {
       visitSimplePredicate(
           new GreaterThanOrEqualsPredicate<>(predicate.getKey(), predicate.getValue().getLte()),
-          LESS_THAN_EQUALS_OPERATOR);
+          LESS_THAN_EQUALS_OPERATOR,
+          context);
     } else {
       visitSimplePredicate(
           new GreaterThanOrEqualsPredicate<>(predicate.getKey(), predicate.getValue().getLt()),
-          LESS_THAN_OPERATOR);
+          LESS_THAN_OPERATOR,
+          context);
     }
-    builder.append("))");
+    context.append("))");
   }
 
   /*
@@ -608,25 +974,45 @@ public class SQLQueryVisitor<S extends SearchParameter> implements QueryVisitor
    * but it is probably still better to use an IN, which uses a hash table lookup internally:
    *   https://jira.apache.org/jira/browse/HIVE-11415#comment-14651085
    */
-  public void visit(InPredicate<S> predicate) throws QueryBuildingException {
+  public void visit(InPredicate<S> predicate, QueryContext context) throws QueryBuildingException {
     log.info("InPredicate " + predicate);
 
     boolean isMatchCase = Optional.ofNullable(predicate.isMatchCase()).orElse(Boolean.FALSE);
-
-    if (isSQLArray(predicate.getKey()) || SQLColumnsUtils.isVocabulary(term(predicate.getKey()))) {
+    Set<String> concepts =
+        SQLColumnsUtils.isVocabulary(term(predicate.getKey()))
+            ? vocabularyConcepts(predicate.getKey(), predicate.getValues())
+            : null;
+
+    List<String> arrayValues =
+        isSQLArray(predicate.getKey()) ? caseSensitiveArrayValues(predicate, isMatchCase) : null;
+
+    if (concepts != null) {
+      // All the concepts and their descendants in one lookup
+      appendVocabularyConceptFilter(predicate.getKey(), concepts, context);
+    } else if (arrayValues != null) {
+      // One native set operation instead of a function call per value
+      Term term =
+          predicate.getKey() == OccurrenceSearchParameter.MEDIA_TYPE
+              ? GbifTerm.mediaType
+              : predicate.getKey() == OccurrenceSearchParameter.ISSUE
+                  ? GbifTerm.issue
+                  : sqlTermsMapper.getTermArray(predicate.getKey());
+      appendArrayContains(term, arrayValues, context);
+    } else if (isSQLArray(predicate.getKey())
+        || SQLColumnsUtils.isVocabulary(term(predicate.getKey()))) {
       // Array values must be converted to ORs.
-      builder.append('(');
+      context.append('(');
       Iterator<String> iterator = predicate.getValues().iterator();
       while (iterator.hasNext()) {
         // Use the equals predicate to get the behaviour for array.
-        visit(new EqualsPredicate<S>(predicate.getKey(), iterator.next(), isMatchCase));
+        visit(new EqualsPredicate<S>(predicate.getKey(), iterator.next(), isMatchCase), context);
         if (iterator.hasNext()) {
-          builder.append(DISJUNCTION_OPERATOR);
+          context.append(DISJUNCTION_OPERATOR);
         }
       }
-      builder.append(')');
+      context.append(')');
     } else if (isHumboldtTaxonParameter(predicate.getKey())) {
-      appendHumboldtTaxonFilter(predicate);
+      appendHumboldtTaxonFilter(predicate, context);
     } else if (predicate.getKey() == OccurrenceSearchParameter.TAXON_KEY
         && (predicate.getChecklistKey() == null
             || Constants.NUB_DATASET_KEY
@@ -635,58 +1021,58 @@ public class SQLQueryVisitor<S extends SearchParameter> implements QueryVisitor
       // Use the taxonkey, specieskey etc columns for performance. Users are encouraged to make
       // downloads with 10,000s of taxon identifiers, and performance of this will need to be
       // adequate before the classifications column can be used.
-      appendTaxonomicBackboneArrayFilter(predicate);
+      appendTaxonomicBackboneArrayFilter(predicate, context);
     } else if (TAXON_SEARCH_PARAMETERS.contains(predicate.getKey())) {
-      appendTaxonKeyArrayFilter(predicate);
+      appendTaxonKeyArrayFilter(predicate, context);
     } else if (predicate.getKey() == OccurrenceSearchParameter.TAXONOMIC_ISSUE) {
-      appendTaxonomicArrayFilter(predicate, GbifTerm.taxonomicIssue);
+      appendTaxonomicArrayFilter(predicate, GbifTerm.taxonomicIssue, context);
     } else if (predicate.getKey() == OccurrenceSearchParameter.TAXONOMIC_STATUS) {
-      appendTaxonomicSingleValueFilter(predicate, GbifInternalTerm.taxonomicStatuses);
+      appendTaxonomicSingleValueFilter(predicate, GbifInternalTerm.taxonomicStatuses, context);
     } else if (predicate.getKey() == OccurrenceSearchParameter.GADM_GID) {
-      // GADM GIDs must be expanded into a disjunction of in predicates
-      appendGadmGidFilter(predicate.getValues());
+      // GADM GIDs must be expanded into a disjunction of in predicates, one per level
+      appendGadmGidFilter(predicate.getValues(), context);
     } else if (predicate.getKey().name().equals("EVENT_DATE")) {
       // Event dates must be expanded into a disjunction of conjunction predicates (of comparisons)
-      builder.append('(');
+      context.append('(');
       Iterator<String> iterator = predicate.getValues().iterator();
       while (iterator.hasNext()) {
         // Use the equals predicate to get the behaviour for event dates.
-        visit(new EqualsPredicate<S>(predicate.getKey(), iterator.next(), isMatchCase));
+        visit(new EqualsPredicate<S>(predicate.getKey(), iterator.next(), isMatchCase), context);
         if (iterator.hasNext()) {
-          builder.append(DISJUNCTION_OPERATOR);
+          context.append(DISJUNCTION_OPERATOR);
         }
       }
-      builder.append(')');
+      context.append(')');
 
     } else if (OccurrenceSearchParameter.GEOLOGICAL_TIME == predicate.getKey()) {
       List<Predicate> allPredicates =
           predicate.getValues().stream()
               .map(v -> new EqualsPredicate<>(predicate.getKey(), v, false))
               .collect(Collectors.toList());
-      visit(new DisjunctionPredicate(allPredicates));
+      visit(new DisjunctionPredicate(allPredicates), context);
     } else {
-      builder
+      context
           .append('(')
           .append(toSQLField(predicate.getKey(), isMatchCase))
           .append(IN_OPERATOR)
           .append('(');
       Iterator<String> iterator = predicate.getValues().iterator();
       while (iterator.hasNext()) {
-        builder.append(toSQLValue(predicate.getKey(), iterator.next(), isMatchCase));
+        context.append(toSQLValue(predicate.getKey(), iterator.next(), isMatchCase));
         if (iterator.hasNext()) {
-          builder.append(", ");
+          context.append(", ");
         }
       }
-      builder.append(")");
+      context.append(")");
 
       // this block can be removed in future if we don't need a denormalized
       // AVRO extension
       if (sqlTermsMapper.isDenormedTerm(predicate.getKey())) {
-        builder.append(" OR ").append('(');
+        context.append(" OR ").append('(');
 
         Iterator<String> iterator2 = predicate.getValues().iterator();
         while (iterator2.hasNext()) {
-          builder
+          context
               .append('(')
               // FIX ME
               .append("array_contains(")
@@ -696,23 +1082,24 @@ public class SQLQueryVisitor<S extends SearchParameter> implements QueryVisitor
               .append(')')
               .append(')');
           if (iterator2.hasNext()) {
-            builder.append(" OR ");
+            context.append(" OR ");
           }
         }
-        builder.append(")");
+        context.append(")");
       }
-      builder.append(")");
+      context.append(")");
     }
   }
 
-  public void visit(LikePredicate<S> predicate) throws QueryBuildingException {
+  public void visit(LikePredicate<S> predicate, QueryContext context)
+      throws QueryBuildingException {
     if (sqlTermsMapper.isArray(predicate.getKey())) {
-      builder.append(
+      context.append(
           String.format(
               getArrayLikeFn().apply(sqlTermsMapper.getTermArray(predicate.getKey())),
               predicate.getValue().replaceAll("'", "\\\\'"),
               predicate.isMatchCase()));
-    } else {
+    } else if (!appendLikeAsRange(predicate, context)) {
       // Replace % → \% and _ → \_
       // Then replace * → % and ? → _
       LikePredicate<S> likePredicate =
@@ -726,139 +1113,175 @@ public class SQLQueryVisitor<S extends SearchParameter> implements QueryVisitor
                   .replace('?', '_'),
               predicate.isMatchCase());
 
-      visitSimplePredicate(likePredicate, LIKE_OPERATOR);
+      visitSimplePredicate(likePredicate, LIKE_OPERATOR, context);
+    }
+  }
+
+  /**
+   * Searches a pattern without wildcards with an equality, and a pattern with a trailing * only
+   * with a range of values, e.g. {@code abc*} with {@code >= 'abc' AND < 'abd'}. Unlike LIKE,
+   * equalities and ranges let the file formats skip data by the min/max statistics of the column.
+   *
+   * <p>Ranges are only used when the column is compared as it is, as lower() hides its statistics
+   * anyway, and for ASCII prefixes, whose next value is the same in Java and SQL.
+   *
+   * @return false if the pattern can't be searched like that
+   */
+  private boolean appendLikeAsRange(LikePredicate<S> predicate, QueryContext context)
+      throws QueryBuildingException {
+    S key = predicate.getKey();
+    String value = predicate.getValue();
+    int end = value.length();
+    while (end > 0 && value.charAt(end - 1) == '*') {
+      end--;
+    }
+    String prefix = value.substring(0, end);
+    if (prefix.isEmpty()
+        || prefix.indexOf('*') >= 0
+        || prefix.indexOf('?') >= 0
+        || !String.class.isAssignableFrom(key.type())
+        || SQLColumnsUtils.isVocabulary(term(key))) {
+      return false;
+    }
+
+    if (end == value.length()) {
+      visitSimplePredicate(predicate, EQUALS_OPERATOR, value, context);
+      return true;
     }
+
+    boolean caseFolded = sqlTermsMapper.getCaseFoldedColumn(key) != null;
+    if (!(predicate.isMatchCase() || caseFolded)
+        || !prefix.chars().allMatch(c -> c >= ' ' && c < 0x7F)) {
+      return false;
+    }
+    if (!predicate.isMatchCase()) {
+      prefix = prefix.toLowerCase(Locale.ROOT);
+    }
+    String next = prefix.substring(0, end - 1) + (char) (prefix.charAt(end - 1) + 1);
+    context.append('(');
+    visitSimplePredicate(predicate, GREATER_THAN_EQUALS_OPERATOR, prefix, context);
+    context.append(CONJUNCTION_OPERATOR);
+    visitSimplePredicate(predicate, LESS_THAN_OPERATOR, next, context);
+    context.append(')');
+    return true;
   }
 
-  public void visit(NotPredicate predicate) throws QueryBuildingException {
-    builder.append(NOT_OPERATOR);
-    visit(predicate.getPredicate());
+  public void visit(NotPredicate predicate, QueryContext context) throws QueryBuildingException {
+    context.append(NOT_OPERATOR);
+    visit(predicate.getPredicate(), context);
   }
 
-  public void visit(IsNotNullPredicate<S> predicate) throws QueryBuildingException {
+  public void visit(IsNotNullPredicate<S> predicate, QueryContext context)
+      throws QueryBuildingException {
     if (isHumboldtTaxonParameter(predicate.getParameter())) {
       appendHumboldtTaxonUnary(
-          getChecklistKey(predicate.getChecklistKey()), IS_NOT_NULL_ARRAY_OPERATOR);
+          getChecklistKey(predicate.getChecklistKey()), IS_NOT_NULL_ARRAY_OPERATOR, context);
     } else if (isSQLArray(predicate.getParameter())
         || SQLColumnsUtils.isVocabulary(term(predicate.getParameter()))) {
-      builder.append(
+      context.append(
           String.format(IS_NOT_NULL_ARRAY_OPERATOR, toSQLField(predicate.getParameter(), true)));
     } else if (TAXON_SEARCH_PARAMETERS.contains(predicate.getParameter())) {
-      appendTaxonKeyIsNotNull(predicate);
+      appendTaxonKeyIsNotNull(predicate, context);
     } else if (predicate.getParameter() == OccurrenceSearchParameter.GADM_GID) {
-      appendUnaryList(GADM_GIDS, IS_NOT_NULL_OPERATOR);
+      appendUnaryList(GADM_GIDS, IS_NOT_NULL_OPERATOR, context);
     } else {
       // matchCase: Avoid adding an unnecessary "lower()" when just testing for null.
-      builder.append(toSQLField(predicate.getParameter(), true));
-      builder.append(IS_NOT_NULL_OPERATOR);
+      context.append(toSQLField(predicate.getParameter(), true));
+      context.append(IS_NOT_NULL_OPERATOR);
     }
   }
 
-  public void visit(IsNullPredicate<S> predicate) throws QueryBuildingException {
+  public void visit(IsNullPredicate<S> predicate, QueryContext context)
+      throws QueryBuildingException {
     if (TAXON_SEARCH_PARAMETERS.contains(predicate.getParameter())) {
-      appendTaxonKeyNull(predicate);
+      appendTaxonKeyNull(predicate, context);
     } else if (isHumboldtTaxonParameter(predicate.getParameter())) {
       appendHumboldtTaxonUnary(
-          getChecklistKey(predicate.getChecklistKey()), IS_NULL_ARRAY_OPERATOR);
+          getChecklistKey(predicate.getChecklistKey()), IS_NULL_ARRAY_OPERATOR, context);
     } else if (predicate.getParameter() == OccurrenceSearchParameter.GADM_GID) {
-      appendUnaryList(GADM_GIDS, IS_NULL_OPERATOR);
+      appendUnaryList(GADM_GIDS, IS_NULL_OPERATOR, context);
     } else {
       // matchCase: Avoid adding an unnecessary "lower()" when just testing for null.
       if (isSQLArray(predicate.getParameter())) {
-        builder.append(
+        context.append(
             String.format(IS_NULL_ARRAY_OPERATOR, toSQLField(predicate.getParameter(), true)));
       } else {
-        builder.append(toSQLField(predicate.getParameter(), true));
-        builder.append(IS_NULL_OPERATOR);
+        context.append(toSQLField(predicate.getParameter(), true));
+        context.append(IS_NULL_OPERATOR);
       }
     }
   }
 
   /** Searches any of the NUB keys in Hive of any rank. */
-  private void appendTaxonKeyIsNotNull(IsNotNullPredicate<S> predicate) {
-    builder.append('(');
-    builder.append(
+  private void appendTaxonKeyIsNotNull(IsNotNullPredicate<S> predicate, QueryContext context) {
+    context.append('(');
+    context.append(
         String.format(
             "classificationdetails['%s']['%s'] != ''",
             getChecklistKey(predicate.getChecklistKey()),
             predicate.getParameter().name().replace("_", "").toLowerCase()));
-    builder.append(')');
+    context.append(')');
   }
 
   /** Searches any of the NUB keys in Hive of any rank. */
-  private void appendTaxonKeyNull(IsNullPredicate<S> predicate) {
-    builder.append('(');
-    builder.append(
+  private void appendTaxonKeyNull(IsNullPredicate<S> predicate, QueryContext context) {
+    context.append('(');
+    context.append(
         String.format(
             "classificationdetails['%s']['%s'] = ''",
             getChecklistKey(predicate.getChecklistKey()),
             predicate.getParameter().name().replace("_", "").toLowerCase()));
-    builder.append(')');
+    context.append(')');
   }
 
-  public void visit(WithinPredicate within) throws QueryBuildingException {
-    JtsSpatialContextFactory spatialContextFactory = new JtsSpatialContextFactory();
-    spatialContextFactory.normWrapLongitude = true;
-    spatialContextFactory.srid = 4326;
-    spatialContextFactory.datelineRule = DatelineRule.ccwRect;
-
-    WKTReader reader =
-        new WKTReader(spatialContextFactory.newSpatialContext(), spatialContextFactory);
-
+  public void visit(WithinPredicate within, QueryContext context) throws QueryBuildingException {
     try {
       // the geometry must be valid - it was validated in the predicates constructor
-      Shape geometry = reader.parse(within.getGeometry());
-
-      builder.append('(');
+      WithinGeometry geometry = geometryCache.get(within.getGeometry(), WithinGeometry::parse);
+
+      boolean cellsFiltered =
+          isGeohashFiltered()
+              && appendGeohashFilter(
+                  geometry.getGeohashCells(sqlTermsMapper.getGeohashPrecision(), maxGeohashCells),
+                  context);
+      context.append('(');
       String withinGeometry;
+      boolean interiorCovered = false;
 
       // Add an additional filter to a bounding box around any shapes that aren't quadrilaterals, to
       // speed up the query.
-      if (geometry instanceof JtsGeometry
-          && ((JtsGeometry) geometry).getGeom().getNumPoints() != 5) {
-        Geometry g = ((JtsGeometry) geometry).getGeom();
+      if (geometry.getGeometryText() != null && geometry.getNumPoints() != 5) {
         // Use the Spatial4J-fixed geometry; this is split into a multipolygon if it crosses the
         // antimeridian.
-        withinGeometry = g.toText();
+        withinGeometry = geometry.getGeometryText();
+
+        // The points in a rectangle inside the shape match without calling contains.
+        List<Rectangle> interior =
+            geometry.getInteriorRectangles(withinInteriorDepth, maxWithinInteriorRectangles);
+        if (!interior.isEmpty()) {
+          boundingBoxes(interior, context);
+          context.append(DISJUNCTION_OPERATOR).append('(');
+          interiorCovered = true;
+        }
 
-        Rectangle bounds = geometry.getBoundingBox();
-        boundingBox(bounds);
-        builder.append(CONJUNCTION_OPERATOR);
+        boundingBox(geometry.getBoundingBox(), context);
+        context.append(CONJUNCTION_OPERATOR);
 
         // A tool (R?) can generate hundreds of tiny areas spread across the globe, all in a single
         // multipolygon.
         // Add bounding boxes for these too.
         // Example: https://www.gbif.org/occurrence/download/0187894-210914110416597
-        if (g instanceof MultiPolygon && g.getNumGeometries() > 2) {
-          builder.append("((");
-          for (int i = 0; i < g.getNumGeometries(); i++) {
-            if (i > 0) {
-              // Too many clauses exceeds Hive's query parsing stack.
-              if (i % 500 == 0) {
-                builder.append(')');
-                builder.append(DISJUNCTION_OPERATOR);
-                builder.append('(');
-              } else {
-                builder.append(DISJUNCTION_OPERATOR);
-              }
-            }
-            Geometry gi = g.getGeometryN(i);
-            Envelope env = gi.getEnvelopeInternal();
-            boundingBox(
-                new RectangleImpl(
-                    env.getMinX(),
-                    env.getMaxX(),
-                    env.getMinY(),
-                    env.getMaxY(),
-                    geometry.getContext()));
-          }
-          builder.append("))");
-          builder.append(CONJUNCTION_OPERATOR);
+        if (geometry.isMultiPolygon() && geometry.getPartBoundingBoxes().size() > 2) {
+          boundingBoxes(
+              geometry.getClusteredPartBoundingBoxes(
+                  maxWithinPartBoxes, maxWithinPartBoxInflation),
+              context);
+          context.append(CONJUNCTION_OPERATOR);
         }
       } else {
         withinGeometry = within.getGeometry();
       }
-      builder
+      context
           .append("contains('")
           .append(withinGeometry)
           .append("', ")
@@ -869,15 +1292,41 @@ public class SQLQueryVisitor<S extends SearchParameter> implements QueryVisitor
       // depending
       // on the data format (ORC, Avro, Parquet, text) of the table (!).
       // We could not reproduce the issue on our test cluster, so it seems safest to include this.
-      builder.append(") = TRUE").append(')');
+      context.append(") = TRUE").append(')');
+      if (interiorCovered) {
+        context.append(')');
+      }
+      if (cellsFiltered) {
+        context.append(')');
+      }
     } catch (Exception e) {
       throw new QueryBuildingException(e);
     }
   }
 
-  public void visit(GeoDistancePredicate geoDistance) throws QueryBuildingException {
-    builder
-        .append("(geoDistance(")
+  public void visit(GeoDistancePredicate geoDistance, QueryContext context)
+      throws QueryBuildingException {
+    DistanceUnit.Distance distance = geoDistance.getGeoDistance().getDistance();
+    Rectangle bounds =
+        distanceBoundingBox(
+            geoDistance.getGeoDistance().getLatitude(),
+            geoDistance.getGeoDistance().getLongitude(),
+            distance.getUnit().toMeters(distance.getValue()));
+
+    boolean cellsFiltered =
+        bounds != null
+            && isGeohashFiltered()
+            && appendGeohashFilter(
+                GeohashCover.cover(bounds, sqlTermsMapper.getGeohashPrecision(), maxGeohashCells),
+                context);
+    context.append('(');
+    // Add a bounding box around the circle to skip most records before computing the distance.
+    if (bounds != null) {
+      boundingBox(bounds, context);
+      context.append(CONJUNCTION_OPERATOR);
+    }
+    context
+        .append("geoDistance(")
         .append(geoDistance.getGeoDistance().getLatitude())
         .append(", ")
         .append(geoDistance.getGeoDistance().getLongitude())
@@ -888,14 +1337,163 @@ public class SQLQueryVisitor<S extends SearchParameter> implements QueryVisitor
         .append(", ")
         .append(sqlColumnsUtils.getSQLQueryColumn(DwcTerm.decimalLongitude))
         .append(") = TRUE)");
+    if (cellsFiltered) {
+      context.append(')');
+    }
+  }
+
+  /**
+   * Sets the quadtree depth of the rectangles searched inside the within geometries.
+   *
+   * @param withinInteriorDepth depth from 0 to {@value #MAX_WITHIN_INTERIOR_DEPTH}
+   * @throws IllegalArgumentException if the depth is out of range
+   */
+  public void setWithinInteriorDepth(int withinInteriorDepth) {
+    if (withinInteriorDepth < 0 || withinInteriorDepth > MAX_WITHIN_INTERIOR_DEPTH) {
+      throw new IllegalArgumentException(
+          "Within interior depth must be between 0 and "
+              + MAX_WITHIN_INTERIOR_DEPTH
+              + ": "
+              + withinInteriorDepth);
+    }
+    this.withinInteriorDepth = withinInteriorDepth;
+  }
+
+  private boolean isGeohashFiltered() {
+    return maxGeohashCells > 0
+        && sqlTermsMapper.getGeohashColumn() != null
+        && sqlTermsMapper.getGeohashPrecision() > 0;
+  }
+
+  /**
+   * Opens a conjunction with a filter on the geohash cells of a spatial predicate. Cells shorter
+   * than the geohashes of the column are ranges of the geohashes they contain, so the filter is
+   * still on the column itself and the statistics of the files can skip the stripes out of it.
+   *
+   * @return true if the conjunction was opened, false if there are no cells
+   */
+  private boolean appendGeohashFilter(List<String> cells, QueryContext context) {
+    if (cells == null || cells.isEmpty()) {
+      return false;
+    }
+    String column = sqlTermsMapper.getGeohashColumn();
+    context.append('(');
+    if (cells.get(0).length() >= sqlTermsMapper.getGeohashPrecision()) {
+      context
+          .append(column)
+          .append(IN_OPERATOR)
+          .append('(')
+          .append(cells.stream().map(c -> '\'' + c + '\'').collect(Collectors.joining(", ")))
+          .append(')');
+    } else {
+      // adjacent cells are merged into a single range
+      List<String[]> ranges = new ArrayList<>();
+      for (String cell : cells) {
+        String[] last = ranges.isEmpty() ? null : ranges.get(ranges.size() - 1);
+        if (last != null && cell.equals(last[1])) {
+          last[1] = GeohashCover.next(cell);
+        } else {
+          ranges.add(new String[] {cell, GeohashCover.next(cell)});
+        }
+      }
+
+      if (ranges.size() > 1) {
+        context.append('(');
+      }
+      for (int i = 0; i < ranges.size(); i++) {
+        if (i > 0) {
+          context.append(DISJUNCTION_OPERATOR);
+        }
+        String[] range = ranges.get(i);
+        context
+            .append('(')
+            .append(column)
+            .append(GREATER_THAN_EQUALS_OPERATOR)
+            .append('\'')
+            .append(range[0])
+            .append('\'');
+        if (range[1] != null) {
+          context
+              .append(CONJUNCTION_OPERATOR)
+              .append(column)
+              .append(LESS_THAN_OPERATOR)
+              .append('\'')
+              .append(range[1])
+              .append('\'');
+        }
+        context.append(')');
+      }
+      if (ranges.size() > 1) {
+        context.append(')');
+      }
+    }
+    context.append(CONJUNCTION_OPERATOR);
+    return true;
+  }
+
+  /**
+   * Bounding box of the points within a distance of a point, or null if it covers the whole globe.
+   * Boxes reaching a pole cover all longitudes, boxes crossing the antimeridian have a minimum
+   * longitude greater than the maximum.
+   */
+  static Rectangle distanceBoundingBox(double latitude, double longitude, double meters) {
+    // the smallest radius of curvature of the WGS84 ellipsoid, so the box is never too small
+    double distance = Math.toDegrees(meters / MIN_EARTH_RADIUS_METERS);
+    if (distance >= 180) {
+      return null;
+    }
+
+    double minY = latitude - distance;
+    double maxY = latitude + distance;
+    double minX;
+    double maxX;
+    if (minY <= -90 || maxY >= 90) {
+      minY = Math.max(minY, -90);
+      maxY = Math.min(maxY, 90);
+      minX = -180;
+      maxX = 180;
+    } else {
+      // StrictMath, so the box is the same on every platform
+      double sin = StrictMath.sin(Math.toRadians(distance));
+      double cos = StrictMath.cos(Math.toRadians(latitude));
+      double deltaX = Math.toDegrees(StrictMath.asin(sin / cos));
+      minX = longitude - deltaX;
+      maxX = longitude + deltaX;
+      if (minX < -180) {
+        minX += 360;
+      }
+      if (maxX > 180) {
+        maxX -= 360;
+      }
+    }
+    return new RectangleImpl(minX, maxX, minY, maxY, SpatialContext.GEO);
+  }
+
+  /** Any of the bounding boxes. */
+  private void boundingBoxes(List<Rectangle> boxes, QueryContext context) {
+    context.append("((");
+    for (int i = 0; i < boxes.size(); i++) {
+      if (i > 0) {
+        // Too many clauses exceeds Hive's query parsing stack.
+        if (i % 500 == 0) {
+          context.append(')');
+          context.append(DISJUNCTION_OPERATOR);
+          context.append('(');
+        } else {
+          context.append(DISJUNCTION_OPERATOR);
+        }
+      }
+      boundingBox(boxes.get(i), context);
+    }
+    context.append("))");
   }
 
   /**
    * Given a bounding box, generates greater than / lesser than queries using decimalLatitude and
    * decimalLongitude to form a bounding box.
    */
-  private void boundingBox(Rectangle bounds) {
-    builder
+  private void boundingBox(Rectangle bounds, QueryContext context) {
+    context
         .append('(')
         // Latitude is easy:
         .append(sqlColumnsUtils.getSQLQueryColumn(DwcTerm.decimalLatitude))
@@ -913,11 +1511,11 @@ public class SQLQueryVisitor<S extends SearchParameter> implements QueryVisitor
         .append(GREATER_THAN_EQUALS_OPERATOR)
         .append(bounds.getMinX());
     if (bounds.getMinX() < bounds.getMaxX()) {
-      builder.append(CONJUNCTION_OPERATOR);
+      context.append(CONJUNCTION_OPERATOR);
     } else {
-      builder.append(DISJUNCTION_OPERATOR);
+      context.append(DISJUNCTION_OPERATOR);
     }
-    builder
+    context
         .append(sqlColumnsUtils.getSQLQueryColumn(DwcTerm.decimalLongitude))
         .append(LESS_THAN_EQUALS_OPERATOR)
         .append(bounds.getMaxX())
@@ -934,34 +1532,36 @@ public class SQLQueryVisitor<S extends SearchParameter> implements QueryVisitor
    * ((predicate) op (predicate) ... op (predicate))
    * </pre>
    */
-  public void visitCompoundPredicate(CompoundPredicate predicate, String op)
+  public void visitCompoundPredicate(CompoundPredicate predicate, String op, QueryContext context)
       throws QueryBuildingException {
-    builder.append('(');
+    context.append('(');
     Iterator<Predicate> iterator = predicate.getPredicates().iterator();
     while (iterator.hasNext()) {
       Predicate subPredicate = iterator.next();
-      builder.append('(');
-      visit(subPredicate);
-      builder.append(')');
+      context.append('(');
+      visit(subPredicate, context);
+      context.append(')');
       if (iterator.hasNext()) {
-        builder.append(op);
+        context.append(op);
       }
     }
-    builder.append(')');
+    context.append(')');
   }
 
-  public void visitSimplePredicate(SimplePredicate<S> predicate, String op)
+  public void visitSimplePredicate(SimplePredicate<S> predicate, String op, QueryContext context)
       throws QueryBuildingException {
     if (Number.class.isAssignableFrom(predicate.getKey().type())) {
       if (SearchTypeValidator.isNumericRange(predicate.getValue())) {
         if (Integer.class.equals(predicate.getKey().type())) {
           visit(
               toIntegerRangePredicate(
-                  SearchTypeValidator.parseIntegerRange(predicate.getValue()), predicate.getKey()));
+                  SearchTypeValidator.parseIntegerRange(predicate.getValue()), predicate.getKey()),
+              context);
         } else {
           visit(
               toNumberRangePredicate(
-                  SearchTypeValidator.parseDecimalRange(predicate.getValue()), predicate.getKey()));
+                  SearchTypeValidator.parseDecimalRange(predicate.getValue()), predicate.getKey()),
+              context);
         }
         return;
       }
@@ -969,7 +1569,7 @@ public class SQLQueryVisitor<S extends SearchParameter> implements QueryVisitor
 
     if (sqlTermsMapper.includeNullInPredicate(predicate)) {
       String column = sqlColumnsUtils.getSQLColumn(term(predicate.getKey()));
-      builder
+      context
           .append('(')
           .append(toSQLField(predicate.getKey(), predicate.isMatchCase()))
           .append(op)
@@ -981,18 +1581,19 @@ public class SQLQueryVisitor<S extends SearchParameter> implements QueryVisitor
                   : column + IS_NULL_OPERATOR)
           .append(')');
     } else {
-      builder
+      context
           .append(toSQLField(predicate.getKey(), predicate.isMatchCase()))
           .append(op)
           .append(toSQLValue(predicate.getKey(), predicate.getValue(), predicate.isMatchCase()));
     }
   }
 
-  public void visitSimplePredicate(SimplePredicate<S> predicate, String op, String value)
+  public void visitSimplePredicate(
+      SimplePredicate<S> predicate, String op, String value, QueryContext context)
       throws QueryBuildingException {
     if (sqlTermsMapper.includeNullInPredicate(predicate)) {
       String column = sqlColumnsUtils.getSQLColumn(term(predicate.getKey()));
-      builder
+      context
           .append('(')
           .append(toSQLField(predicate.getKey(), predicate.isMatchCase()))
           .append(op)
@@ -1004,7 +1605,7 @@ public class SQLQueryVisitor<S extends SearchParameter> implements QueryVisitor
                   : column + IS_NULL_OPERATOR)
           .append(')');
     } else {
-      builder
+      context
           .append(toSQLField(predicate.getKey(), predicate.isMatchCase()))
           .append(op)
           .append(toSQLValue(predicate.getKey(), value, predicate.isMatchCase()));
@@ -1016,12 +1617,35 @@ public class SQLQueryVisitor<S extends SearchParameter> implements QueryVisitor
     return sqlColumnsUtils.getSQLType(term(parameter)).startsWith(SQL_ARRAY_PRE);
   }
 
+  private boolean isContradiction(ConjunctionPredicate predicate) {
+    return detectContradictions
+        && new ContradictionAnalyzer<S>(
+                this::isSingleValued, sqlTermsMapper::includeNullInPredicate)
+            .isContradiction(predicate);
+  }
+
+  /**
+   * Determines if the parameter has at most one value per record, so that e.g. two equals
+   * predicates with different values can't both match. Only the parameters known to be scalar
+   * columns are, override it to add others.
+   */
+  protected boolean isSingleValued(S parameter) {
+    Term term = term(parameter);
+    return SINGLE_VALUED_SEARCH_PARAMETERS.contains(parameter)
+        && term != null
+        && !SQLColumnsUtils.isVocabulary(term)
+        && !sqlTermsMapper.isArray(parameter)
+        && !isSQLArray(parameter)
+        && !sqlTermsMapper.isDenormedTerm(parameter);
+  }
+
   /** Term associated to a search parameter */
   public Term term(S parameter) {
     return sqlTermsMapper.term(parameter);
   }
 
-  private void appendHumboldtTaxonFilter(String checklistKey, S parameter, String value) {
+  private void appendHumboldtTaxonFilter(
+      String checklistKey, S parameter, String value, QueryContext context) {
     Objects.requireNonNull(checklistKey);
 
     String field = HUMBOLDT_TAXON_COLUMNS.getOrDefault(parameter, null);
@@ -1030,7 +1654,7 @@ public class SQLQueryVisitor<S extends SearchParameter> implements QueryVisitor
       return;
     }
 
-    builder
+    context
         .append('(')
         .append(
             String.format(
@@ -1042,14 +1666,15 @@ public class SQLQueryVisitor<S extends SearchParameter> implements QueryVisitor
         .append(')');
   }
 
-  private void appendHumboldtTaxonFilter(EqualsPredicate<S> taxonPredicate) {
+  private void appendHumboldtTaxonFilter(EqualsPredicate<S> taxonPredicate, QueryContext context) {
     appendHumboldtTaxonFilter(
         getChecklistKey(taxonPredicate.getChecklistKey()),
         taxonPredicate.getKey(),
-        taxonPredicate.getValue());
+        taxonPredicate.getValue(),
+        context);
   }
 
-  private void appendHumboldtTaxonFilter(InPredicate<S> taxonPredicate) {
+  private void appendHumboldtTaxonFilter(InPredicate<S> taxonPredicate, QueryContext context) {
     String field = HUMBOLDT_TAXON_COLUMNS.getOrDefault(taxonPredicate.getKey(), null);
 
     if (field == null) {
@@ -1061,7 +1686,7 @@ public class SQLQueryVisitor<S extends SearchParameter> implements QueryVisitor
             .map(v -> toSQLValue(taxonPredicate.getKey(), v, true))
             .collect(Collectors.toSet());
 
-    builder
+    context
         .append('(')
         .append(
             String.format(
@@ -1073,16 +1698,17 @@ public class SQLQueryVisitor<S extends SearchParameter> implements QueryVisitor
         .append(')');
   }
 
-  private void appendHumboldtTaxonUnary(String checklistKey, String unaryOperator) {
+  private void appendHumboldtTaxonUnary(
+      String checklistKey, String unaryOperator, QueryContext context) {
     Objects.requireNonNull(checklistKey);
-    builder.append('(');
-    builder.append(
+    context.append('(');
+    context.append(
         String.format(
             "%s['%s']['%s'] " + unaryOperator,
             sqlColumnsUtils.getSQLQueryColumn(EcoTerm.targetTaxonomicScope),
             getChecklistKey(checklistKey),
             "usageName"));
-    builder.append(')');
+    context.append(')');
   }
 
   /**
@@ -1090,16 +1716,26 @@ public class SQLQueryVisitor<S extends SearchParameter> implements QueryVisitor
    *
    * @param taxonKeyPredicate to append as filter
    */
-  private void appendTaxonomicBackboneArrayFilter(InPredicate<S> taxonKeyPredicate) {
-    Collection<String> taxonKeys = taxonKeyPredicate.getValues();
+  private void appendTaxonomicBackboneArrayFilter(
+      InPredicate<S> taxonKeyPredicate, QueryContext context) {
+    Map<Term, List<String>> taxonKeysByTerm = new LinkedHashMap<>();
+    for (String taxonKey : taxonKeyPredicate.getValues()) {
+      for (Term term : taxonKeyTerms(taxonKey)) {
+        taxonKeysByTerm.computeIfAbsent(term, t -> new ArrayList<>()).add(taxonKey);
+      }
+    }
 
-    builder.append('(');
+    context.append('(');
     boolean first = true;
     for (Term term : NUB_KEYS) {
+      List<String> taxonKeys = taxonKeysByTerm.get(term);
+      if (taxonKeys == null) {
+        continue;
+      }
       if (!first) {
-        builder.append(DISJUNCTION_OPERATOR);
+        context.append(DISJUNCTION_OPERATOR);
       }
-      builder
+      context
           .append(sqlColumnsUtils.getSQLQueryColumn(term))
           .append(IN_OPERATOR)
           .append("('")
@@ -1107,7 +1743,22 @@ public class SQLQueryVisitor<S extends SearchParameter> implements QueryVisitor
           .append("')");
       first = false;
     }
-    builder.append(')');
+    context.append(')');
+  }
+
+  /**
+   * Backbone key columns a taxon key can be in: the taxon and accepted taxon keys, and the key of
+   * its rank. All of them if the rank isn't known.
+   */
+  private List<GbifTerm> taxonKeyTerms(String taxonKey) {
+    Rank rank = taxonRankResolver != null ? taxonRankResolver.getRank(taxonKey) : null;
+    if (rank == null) {
+      return NUB_KEYS;
+    }
+    GbifTerm rankKey = RANK_KEYS.get(rank);
+    return rankKey != null
+        ? List.of(GbifTerm.taxonKey, GbifTerm.acceptedTaxonKey, rankKey)
+        : List.of(GbifTerm.taxonKey, GbifTerm.acceptedTaxonKey);
   }
 
   /**
@@ -1115,14 +1766,15 @@ public class SQLQueryVisitor<S extends SearchParameter> implements QueryVisitor
    *
    * @param taxonKeyPredicate to append as filter
    */
-  private void appendTaxonomicBackboneSingleValueFilter(EqualsPredicate<S> taxonKeyPredicate) {
-    builder.append('(');
+  private void appendTaxonomicBackboneSingleValueFilter(
+      EqualsPredicate<S> taxonKeyPredicate, QueryContext context) {
+    context.append('(');
     boolean first = true;
-    for (Term term : NUB_KEYS) {
+    for (Term term : taxonKeyTerms(taxonKeyPredicate.getValue())) {
       if (!first) {
-        builder.append(DISJUNCTION_OPERATOR);
+        context.append(DISJUNCTION_OPERATOR);
       }
-      builder
+      context
           .append(sqlColumnsUtils.getSQLQueryColumn(term))
           .append(EQUALS_OPERATOR)
           .append('\'')
@@ -1130,7 +1782,99 @@ public class SQLQueryVisitor<S extends SearchParameter> implements QueryVisitor
           .append('\'');
       first = false;
     }
-    builder.append(')');
+    context.append(')');
+  }
+
+  /**
+   * Values of an in predicate on an array, as they are stored, if they can be compared case
+   * sensitively. Null if they can't, or if none of the values is valid.
+   */
+  private List<String> caseSensitiveArrayValues(InPredicate<S> predicate, boolean matchCase) {
+    List<String> values = new ArrayList<>(predicate.getValues().size());
+    for (String value : predicate.getValues()) {
+      if (predicate.getKey() == OccurrenceSearchParameter.MEDIA_TYPE) {
+        Optional.ofNullable(VocabularyUtils.lookupEnum(value, MediaType.class))
+            .ifPresent(mediaType -> values.add(mediaType.name()));
+      } else if (predicate.getKey() == OccurrenceSearchParameter.ISSUE) {
+        values.add(value.toUpperCase());
+      } else if (matchCase) {
+        values.add(value);
+      } else {
+        return null;
+      }
+    }
+    return values.isEmpty() ? null : values;
+  }
+
+  /**
+   * Searches values in an array with the native array functions, comparing them case sensitively.
+   * The functions return null for a null array, or when nothing matches and the array has nulls,
+   * which is turned into false for negations to keep matching those records.
+   *
+   * @param values to append as filter, as they are stored
+   */
+  private void appendArrayContains(Term term, List<String> values, QueryContext context) {
+    String column = sqlColumnsUtils.getSQLQueryColumn(term);
+    List<String> quotedValues =
+        values.stream()
+            .map(value -> '\'' + value.replaceAll("'", "\\\\'") + '\'')
+            .collect(Collectors.toList());
+    if (quotedValues.size() == 1) {
+      context.append(
+          String.format("coalesce(array_contains(%s,%s),false)", column, quotedValues.get(0)));
+    } else {
+      context.append(
+          String.format(
+              "coalesce(arrays_overlap(%s,array(%s)),false)",
+              column,
+              String.join(",", quotedValues)));
+    }
+  }
+
+  /**
+   * Concepts a vocabulary predicate matches: the given ones and their descendants. Null if there
+   * are no concept trees, or any of the concepts isn't in them.
+   */
+  private Set<String> vocabularyConcepts(S parameter, Collection<String> values) {
+    if (vocabularyHierarchy == null) {
+      return null;
+    }
+    Set<String> concepts = new LinkedHashSet<>();
+    for (String value : values) {
+      Set<String> descendants =
+          vocabularyHierarchy.getConceptAndDescendants(term(parameter), value);
+      if (descendants == null) {
+        return null;
+      }
+      concepts.addAll(descendants);
+    }
+    return concepts;
+  }
+
+  /**
+   * Searches vocabulary concepts in the concept column, or in the concepts column of vocabularies
+   * with many values per record. Records without a value give null, which is turned into false so
+   * negations keep matching them, like the search in the lineage does.
+   *
+   * @param concepts to append as filter, with their descendants
+   */
+  private void appendVocabularyConceptFilter(
+      S parameter, Set<String> concepts, QueryContext context) {
+    Term term = term(parameter);
+    String values =
+        concepts.stream()
+            .map(concept -> '\'' + concept.replaceAll("'", "\\\\'") + '\'')
+            .collect(Collectors.joining(", "));
+    if (SQLColumnsUtils.isSQLArray(term)) {
+      context.append(
+          String.format(
+              "coalesce(arrays_overlap(%s, array(%s)), false)",
+              sqlColumnsUtils.getSQLValueColumn(term), values));
+    } else {
+      context.append(
+          String.format(
+              "coalesce(%s IN(%s), false)", sqlColumnsUtils.getSQLValueColumn(term), values));
+    }
   }
 
   /**
@@ -1138,9 +1882,10 @@ public class SQLQueryVisitor<S extends SearchParameter> implements QueryVisitor
    *
    * @param taxonKeyPredicate to append as filter
    */
-  private void appendTaxonomicArrayFilter(EqualsPredicate<S> taxonKeyPredicate, Term term) {
+  private void appendTaxonomicArrayFilter(
+      EqualsPredicate<S> taxonKeyPredicate, Term term, QueryContext context) {
 
-    builder
+    context
         .append('(')
         .append(
             String.format(
@@ -1156,9 +1901,10 @@ public class SQLQueryVisitor<S extends SearchParameter> implements QueryVisitor
    *
    * @param taxonKeyPredicate to append as filter
    */
-  private void appendTaxonomicSingleValueFilter(EqualsPredicate<S> taxonKeyPredicate, Term term) {
+  private void appendTaxonomicSingleValueFilter(
+      EqualsPredicate<S> taxonKeyPredicate, Term term, QueryContext context) {
 
-    builder
+    context
         .append('(')
         .append(
             String.format(
@@ -1170,8 +1916,9 @@ public class SQLQueryVisitor<S extends SearchParameter> implements QueryVisitor
   }
 
   /** Creates a disjunction of all the given terms. */
-  private void appendGadmFilterList(List<? extends Term> terms, String value) {
-    builder
+  private void appendGadmFilterList(
+      List<? extends Term> terms, String value, QueryContext context) {
+    context
         .append('(')
         .append(
             terms.stream()
@@ -1191,13 +1938,13 @@ public class SQLQueryVisitor<S extends SearchParameter> implements QueryVisitor
    *
    * @param taxonomicPredicate to append as filter
    */
-  private void appendTaxonKeyArrayFilter(InPredicate<S> taxonomicPredicate) {
+  private void appendTaxonKeyArrayFilter(InPredicate<S> taxonomicPredicate, QueryContext context) {
     Set<String> taxonKeys =
         taxonomicPredicate.getValues().stream()
             .map(v -> toSQLValue(taxonomicPredicate.getKey(), v, true))
             .collect(Collectors.toSet());
 
-    builder
+    context
         .append('(')
         .append(
             String.format(
@@ -1213,13 +1960,14 @@ public class SQLQueryVisitor<S extends SearchParameter> implements QueryVisitor
    *
    * @param taxonomicPredicate to append as filter
    */
-  private void appendTaxonomicArrayFilter(InPredicate<S> taxonomicPredicate, Term term) {
+  private void appendTaxonomicArrayFilter(
+      InPredicate<S> taxonomicPredicate, Term term, QueryContext context) {
     Set<String> taxonKeys =
         taxonomicPredicate.getValues().stream()
             .map(v -> toSQLValue(taxonomicPredicate.getKey(), v, true))
             .collect(Collectors.toSet());
 
-    builder
+    context
         .append('(')
         .append(
             String.format(
@@ -1235,17 +1983,18 @@ public class SQLQueryVisitor<S extends SearchParameter> implements QueryVisitor
    *
    * @param taxonomicPredicate to append as filter
    */
-  private void appendTaxonomicSingleValueFilter(InPredicate<S> taxonomicPredicate, Term term) {
+  private void appendTaxonomicSingleValueFilter(
+      InPredicate<S> taxonomicPredicate, Term term, QueryContext context) {
 
     Collection<String> taxonKeys = taxonomicPredicate.getValues();
 
-    builder.append('(');
+    context.append('(');
     boolean first = true;
     for (String taxonKey : taxonKeys) {
       if (!first) {
-        builder.append(DISJUNCTION_OPERATOR);
+        context.append(DISJUNCTION_OPERATOR);
       }
-      builder
+      context
           .append('(')
           .append(
               String.format(
@@ -1256,36 +2005,61 @@ public class SQLQueryVisitor<S extends SearchParameter> implements QueryVisitor
           .append(')');
       first = false;
     }
-    builder.append(')');
+    context.append(')');
   }
 
   /**
-   * Searches every level of GADM GID in Hive for multiple keys.
+   * Searches the GADM GIDs in Hive for multiple keys, each in the column of its level.
    *
    * @param gadmGids to append as filter
    */
-  private void appendGadmGidFilter(Collection<String> gadmGids) {
-    builder.append('(');
+  private void appendGadmGidFilter(Collection<String> gadmGids, QueryContext context) {
+    // Using .toUpperCase() is safe, GIDs must be ASCII anyway.
+    Map<Term, List<String>> gidsPerTerm = new HashMap<>();
+    for (String gadmGid : gadmGids) {
+      String gid = gadmGid.toUpperCase();
+      for (Term term : gadmGidTerms(gid)) {
+        gidsPerTerm.computeIfAbsent(term, t -> new ArrayList<>()).add(gid);
+      }
+    }
+
+    context.append('(');
     boolean first = true;
     for (Term term : GADM_GIDS) {
+      List<String> gids = gidsPerTerm.get(term);
+      if (gids == null) {
+        continue;
+      }
       if (!first) {
-        builder.append(DISJUNCTION_OPERATOR);
+        context.append(DISJUNCTION_OPERATOR);
       }
-      builder.append(sqlColumnsUtils.getSQLQueryColumn(term)).append(IN_OPERATOR).append('(');
-      Iterator<String> iterator = gadmGids.iterator();
+      context.append(sqlColumnsUtils.getSQLQueryColumn(term)).append(IN_OPERATOR).append('(');
+      Iterator<String> iterator = gids.iterator();
       while (iterator.hasNext()) {
         // Hardcoded GADM_LEVEL_0_GID since the type of all these parameters is the same.
-        // Using .toUpperCase() is safe, GIDs must be ASCII anyway.
-        builder.append(
-            toSQLValue(sqlTermsMapper.getDefaultGadmLevel(), iterator.next().toUpperCase(), true));
+        context.append(toSQLValue(sqlTermsMapper.getDefaultGadmLevel(), iterator.next(), true));
         if (iterator.hasNext()) {
-          builder.append(", ");
+          context.append(", ");
         }
       }
-      builder.append(")");
+      context.append(")");
       first = false;
     }
-    builder.append(')');
+    context.append(')');
+  }
+
+  /**
+   * GADM GID columns a GID can be in: the column of its level, which is the number of subdivisions
+   * in the GID. All of them if the GID isn't well formed.
+   */
+  private static List<GadmTerm> gadmGidTerms(String gadmGid) {
+    Matcher matcher = GADM_GID_PATTERN.matcher(gadmGid.trim().toUpperCase());
+    if (!matcher.matches()) {
+      return GADM_GIDS;
+    }
+    String subdivisions = matcher.group(1);
+    int level = subdivisions == null ? 0 : (int) subdivisions.chars().filter(c -> c == '.').count();
+    return List.of(GADM_GIDS.get(level));
   }
 
   /**
@@ -1293,13 +2067,14 @@ public class SQLQueryVisitor<S extends SearchParameter> implements QueryVisitor
    *
    * @param unaryOperator to append as filter
    */
-  private void appendUnaryList(List<? extends Term> terms, String unaryOperator) {
-    builder.append('(');
-    builder.append(
+  private void appendUnaryList(
+      List<? extends Term> terms, String unaryOperator, QueryContext context) {
+    context.append('(');
+    context.append(
         terms.stream()
             .map(term -> sqlColumnsUtils.getSQLQueryColumn(term) + unaryOperator)
             .collect(Collectors.joining(CONJUNCTION_OPERATOR)));
-    builder.append(')');
+    context.append(')');
   }
 
   /**
@@ -1348,25 +2123,39 @@ public class SQLQueryVisitor<S extends SearchParameter> implements QueryVisitor
     return new ConjunctionPredicate(predicates);
   }
 
-  private void visit(Object object) throws QueryBuildingException {
-    Method method = null;
+  // package-private for the dispatch benchmark of the tests
+  void visit(Object object, QueryContext context) throws QueryBuildingException {
+    MethodHandle method =
+        VISIT_METHODS.get(getClass()).computeIfAbsent(object.getClass(), this::findVisitMethod);
     try {
-      method = getClass().getMethod("visit", new Class[] {object.getClass()});
+      method.invokeExact(this, object, context);
+    } catch (Error e) {
+      throw e;
+    } catch (Throwable e) {
+      log.info("Exception thrown while building the query", e);
+      throw new QueryBuildingException(e);
+    }
+  }
+
+  /** Resolves the public visit method of this visitor class for the given predicate class. */
+  private MethodHandle findVisitMethod(Class<?> predicateClass) {
+    Method method;
+    try {
+      method = getClass().getMethod("visit", predicateClass, QueryContext.class);
     } catch (NoSuchMethodException e) {
       log.warn(
           "Visit method could not be found. That means a unknown Predicate has been passed", e);
       throw new IllegalArgumentException("Unknown Predicate", e);
     }
     try {
-      method.invoke(this, object);
+      // subclasses are not necessarily public
+      method.setAccessible(true);
+      return MethodHandles.lookup().unreflect(method).asType(VISIT_TYPE);
     } catch (IllegalAccessException e) {
       log.error(
           "This error shouldn't occur if all visit methods are public. Probably a programming error",
           e);
       throw new RuntimeException(e);
-    } catch (InvocationTargetException e) {
-      log.info("Exception thrown while building the query", e);
-      throw new QueryBuildingException(e);
     }
   }
 
@@ -1381,4 +2170,120 @@ public class SQLQueryVisitor<S extends SearchParameter> implements QueryVisitor
   public static boolean isNullOrEmpty(@Nullable String string) {
     return string == null || string.isEmpty();
   }
+
+  /**
+   * The intersection of the comparisons on a search parameter. Date values are parsed once, and
+   * their bounds are kept the way the comparison visit methods write them: the lower bound is
+   * inclusive and the upper bound exclusive, so "< 2000" ends on 2000-01-01 and "<= 2000" on
+   * 2001-01-01.
+   */
+  private class MergedRange {
+
+    private final S key;
+    private final List<Predicate> bounds = new ArrayList<>();
+
+    private String lower;
+    private Comparable<Object> lowerValue;
+    private boolean lowerInclusive;
+
+    private String upper;
+    private Comparable<Object> upperValue;
+    private boolean upperInclusive;
+
+    private MergedRange(S key) {
+      this.key = key;
+    }
+
+    /** Adds a comparison to the range, returns false if it can't be merged. */
+    private boolean add(SimplePredicate<S> bound) {
+      boolean isLower =
+          bound instanceof GreaterThanOrEqualsPredicate || bound instanceof GreaterThanPredicate;
+      boolean orEquals =
+          bound instanceof GreaterThanOrEqualsPredicate
+              || bound instanceof LessThanOrEqualsPredicate;
+
+      if (sqlTermsMapper.includeNullInPredicate(bound)) {
+        return false;
+      } else if (Date.class.isAssignableFrom(key.type())) {
+        Range<LocalDate> dateRange;
+        try {
+          dateRange = IsoDateParsingUtils.parseDateRange(bound.getValue());
+        } catch (RuntimeException e) {
+          // left to the comparison visit methods
+          return false;
+        }
+        if (!dateRange.hasLowerBound() || !dateRange.hasUpperBound()) {
+          return false;
+        }
+        // "> 2000" and "<= 2000" go from the end of 2000, ">= 2000" and "< 2000" from its start
+        LocalDate date =
+            isLower == orEquals ? dateRange.lowerEndpoint() : dateRange.upperEndpoint();
+        add(ISO_DATE_FORMATTER.format(date), date, isLower, isLower);
+      } else if (Number.class.isAssignableFrom(key.type())) {
+        if (SearchTypeValidator.isNumericRange(bound.getValue())) {
+          return false;
+        }
+        BigDecimal number;
+        try {
+          number = new BigDecimal(bound.getValue().trim());
+        } catch (NumberFormatException e) {
+          return false;
+        }
+        add(bound.getValue(), number, isLower, orEquals);
+      } else {
+        return false;
+      }
+      bounds.add(bound);
+      return true;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void add(String value, Comparable<?> comparable, boolean isLower, boolean inclusive) {
+      Comparable<Object> v = (Comparable<Object>) comparable;
+      if (isLower) {
+        int c = lowerValue == null ? 1 : v.compareTo(lowerValue);
+        if (c > 0 || (c == 0 && !inclusive)) {
+          lower = value;
+          lowerValue = v;
+          lowerInclusive = inclusive;
+        }
+      } else {
+        int c = upperValue == null ? -1 : v.compareTo(upperValue);
+        if (c < 0 || (c == 0 && !inclusive)) {
+          upper = value;
+          upperValue = v;
+          upperInclusive = inclusive;
+        }
+      }
+    }
+  }
+
+  /**
+   * Holds the state of a single query translation. A new context is created for every call to
+   * {@link #buildQuery(Predicate)}, which keeps the visitor itself free of mutable state.
+   */
+  public static class QueryContext {
+
+    private final StringBuilder builder = new StringBuilder();
+
+    public QueryContext append(String value) {
+      builder.append(value);
+      return this;
+    }
+
+    public QueryContext append(char value) {
+      builder.append(value);
+      return this;
+    }
+
+    public QueryContext append(Object value) {
+      builder.append(value);
+      return this;
+    }
+
+    @Override
+    public String toString() {
+      return builder.toString();
+    }
+  }
 }
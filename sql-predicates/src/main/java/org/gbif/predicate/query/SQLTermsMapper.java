@@ -17,6 +17,30 @@ public interface SQLTermsMapper<S extends SearchParameter> {
 
   S getDefaultGadmLevel();
 
+  /**
+   * Column with the lowercase values of a search parameter, filled in when the table is built.
+   * Case insensitive filters compare it with the lowercase value instead of lowering every value
+   * of the search parameter column, so the min/max statistics and bloom filters of the column can
+   * be used. Null if there is no such column.
+   */
+  default String getCaseFoldedColumn(S searchParameter) {
+    return null;
+  }
+
+  /**
+   * Column with the geohash of the coordinates of the records, filled in when the table is built.
+   * Within and geo distance predicates are prefiltered on the geohash cells they cover, so tables
+   * bucketed or sorted by the column can skip most of their files. Null if there is no such column.
+   */
+  default String getGeohashColumn() {
+    return null;
+  }
+
+  /** Number of characters of the geohashes in the {@link #getGeohashColumn()}. */
+  default int getGeohashPrecision() {
+    return 0;
+  }
+
   /**
    * Adds an "is null" filter if the mapper instructs to. Used mostly in range queries to give
    * specific semantics to null values.
@@ -0,0 +1,128 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.predicate.query;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Map;
+import org.gbif.api.vocabulary.Rank;
+
+/**
+ * Ranks of the backbone taxa, read from a snapshot of the backbone. Used to search a taxon key only
+ * in the columns it can be in.
+ *
+ * <p>The snapshot is a tab separated file with a taxon key and a {@link Rank} name per line, like
+ * {@code 212} and {@code CLASS}. Empty lines and lines starting with {@code #} are skipped.
+ *
+ * <p>Taxon keys and ranks are packed into a sorted array of longs, so the whole backbone fits in a
+ * few tens of megabytes.
+ */
+public class TaxonRankResolver {
+
+  private static final Rank[] RANKS = Rank.values();
+  private static final int RANK_BITS = 8;
+  private static final long RANK_MASK = (1L << RANK_BITS) - 1;
+
+  // taxon key << RANK_BITS | rank ordinal, sorted
+  private final long[] keyRanks;
+
+  private TaxonRankResolver(long[] keyRanks) {
+    this.keyRanks = keyRanks;
+    Arrays.sort(this.keyRanks);
+  }
+
+  /**
+   * Reads a snapshot of the backbone ranks.
+   *
+   * @param path of the tab separated snapshot
+   * @return resolver with the ranks of the snapshot
+   * @throws IOException if the file can't be read
+   * @throws IllegalArgumentException if a line isn't a taxon key and a rank
+   */
+  public static TaxonRankResolver fromFile(Path path) throws IOException {
+    long[] keyRanks = new long[1024];
+    int size = 0;
+    try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        if (line.isEmpty() || line.startsWith("#")) {
+          continue;
+        }
+        String[] columns = line.split("\t");
+        if (columns.length < 2) {
+          throw new IllegalArgumentException("Taxon key and rank expected: " + line);
+        }
+        if (size == keyRanks.length) {
+          keyRanks = Arrays.copyOf(keyRanks, size * 2);
+        }
+        keyRanks[size++] = pack(Long.parseLong(columns[0].trim()), Rank.valueOf(columns[1].trim()));
+      }
+    }
+    return new TaxonRankResolver(Arrays.copyOf(keyRanks, size));
+  }
+
+  /**
+   * Creates a resolver from ranks already in memory.
+   *
+   * @param ranks by taxon key
+   * @return resolver with the given ranks
+   */
+  public static TaxonRankResolver fromMap(Map<Long, Rank> ranks) {
+    long[] keyRanks = new long[ranks.size()];
+    int i = 0;
+    for (Map.Entry<Long, Rank> entry : ranks.entrySet()) {
+      keyRanks[i++] = pack(entry.getKey(), entry.getValue());
+    }
+    return new TaxonRankResolver(keyRanks);
+  }
+
+  /**
+   * Looks the rank of a taxon up.
+   *
+   * @param taxonKey backbone taxon key
+   * @return the rank of the taxon, or null if the key isn't in the snapshot
+   */
+  public Rank getRank(String taxonKey) {
+    long key;
+    try {
+      key = Long.parseLong(taxonKey.trim());
+    } catch (NumberFormatException e) {
+      return null;
+    }
+    if (key < 0 || key > Long.MAX_VALUE >> RANK_BITS) {
+      return null;
+    }
+
+    // the first entry of the key is where the key without a rank would be inserted
+    int i = Arrays.binarySearch(keyRanks, key << RANK_BITS);
+    if (i < 0) {
+      i = -i - 1;
+    }
+    if (i < keyRanks.length && keyRanks[i] >>> RANK_BITS == key) {
+      return RANKS[(int) (keyRanks[i] & RANK_MASK)];
+    }
+    return null;
+  }
+
+  private static long pack(long taxonKey, Rank rank) {
+    if (taxonKey < 0 || taxonKey > Long.MAX_VALUE >> RANK_BITS) {
+      throw new IllegalArgumentException("Taxon key out of range: " + taxonKey);
+    }
+    return taxonKey << RANK_BITS | rank.ordinal();
+  }
+}
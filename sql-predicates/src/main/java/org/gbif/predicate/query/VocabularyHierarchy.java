@@ -0,0 +1,143 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.predicate.query;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import org.gbif.dwc.terms.Term;
+
+/**
+ * Concept trees of the vocabularies, read from an export of the vocabulary server. Used to search
+ * a concept and its descendants in the concept column instead of scanning the lineage of every
+ * record.
+ *
+ * <p>The export is a tab separated file with the vocabulary term, a concept and its parent concept
+ * per line, like {@code lifeStage}, {@code Larva} and {@code Juvenile}. The parent is empty for the
+ * root concepts. Empty lines and lines starting with {@code #} are skipped.
+ *
+ * <p>Vocabulary terms and concepts are compared ignoring case, like the lineage filters do.
+ */
+public class VocabularyHierarchy {
+
+  // concepts by lowercase term name and lowercase concept name
+  private final Map<String, Map<String, String>> concepts = new HashMap<>();
+
+  // children by lowercase term name and parent concept
+  private final Map<String, Map<String, List<String>>> children = new HashMap<>();
+
+  private VocabularyHierarchy() {}
+
+  /**
+   * Reads an export of the concept trees.
+   *
+   * @param path of the tab separated export
+   * @return hierarchy with the concepts of the export
+   * @throws IOException if the file can't be read
+   * @throws IllegalArgumentException if a line isn't a vocabulary term, a concept and a parent
+   */
+  public static VocabularyHierarchy fromFile(Path path) throws IOException {
+    VocabularyHierarchy hierarchy = new VocabularyHierarchy();
+    try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        if (line.isEmpty() || line.startsWith("#")) {
+          continue;
+        }
+        String[] columns = line.split("\t", -1);
+        if (columns.length < 2 || columns[0].trim().isEmpty() || columns[1].trim().isEmpty()) {
+          throw new IllegalArgumentException("Vocabulary term and concept expected: " + line);
+        }
+        hierarchy.add(
+            columns[0].trim(), columns[1].trim(), columns.length > 2 ? columns[2].trim() : null);
+      }
+    }
+    return hierarchy;
+  }
+
+  /**
+   * Creates a hierarchy from concept trees already in memory.
+   *
+   * @param parents parent concepts by concept, by vocabulary term name. Root concepts have a null
+   *     parent.
+   * @return hierarchy with the given concepts
+   */
+  public static VocabularyHierarchy fromMap(Map<String, Map<String, String>> parents) {
+    VocabularyHierarchy hierarchy = new VocabularyHierarchy();
+    parents.forEach(
+        (vocabulary, conceptParents) ->
+            conceptParents.forEach(
+                (concept, parent) -> hierarchy.add(vocabulary, concept, parent)));
+    return hierarchy;
+  }
+
+  private void add(String vocabulary, String concept, String parent) {
+    String key = vocabulary.toLowerCase(Locale.ROOT);
+    concepts
+        .computeIfAbsent(key, k -> new HashMap<>())
+        .put(concept.toLowerCase(Locale.ROOT), concept);
+    if (parent != null && !parent.isEmpty()) {
+      children
+          .computeIfAbsent(key, k -> new HashMap<>())
+          .computeIfAbsent(parent.toLowerCase(Locale.ROOT), k -> new ArrayList<>())
+          .add(concept);
+    }
+  }
+
+  /**
+   * Looks the descendants of a concept up.
+   *
+   * @param term vocabulary term
+   * @param concept name of the concept, in any case
+   * @return the concept and all its descendants, or null if the concept isn't in the export
+   */
+  public Set<String> getConceptAndDescendants(Term term, String concept) {
+    String key = term.simpleName().toLowerCase(Locale.ROOT);
+    String name =
+        concepts
+            .getOrDefault(key, Collections.emptyMap())
+            .get(concept.trim().toLowerCase(Locale.ROOT));
+    if (name == null) {
+      return null;
+    }
+
+    Map<String, List<String>> vocabularyChildren =
+        children.getOrDefault(key, Collections.emptyMap());
+    Set<String> descendants = new LinkedHashSet<>();
+    Deque<String> pending = new ArrayDeque<>();
+    pending.add(name);
+    while (!pending.isEmpty()) {
+      String next = pending.poll();
+      // a concept can't be its own ancestor, but the export isn't validated
+      if (descendants.add(next)) {
+        pending.addAll(
+            vocabularyChildren.getOrDefault(
+                next.toLowerCase(Locale.ROOT), Collections.emptyList()));
+      }
+    }
+    return descendants;
+  }
+}
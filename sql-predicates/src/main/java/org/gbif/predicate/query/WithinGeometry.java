@@ -0,0 +1,337 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.predicate.query;
+
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import lombok.AccessLevel;
+import lombok.Getter;
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.MultiPolygon;
+import org.locationtech.jts.geom.Polygonal;
+import org.locationtech.jts.geom.prep.PreparedGeometry;
+import org.locationtech.jts.geom.prep.PreparedGeometryFactory;
+import org.locationtech.spatial4j.context.jts.DatelineRule;
+import org.locationtech.spatial4j.context.jts.JtsSpatialContext;
+import org.locationtech.spatial4j.context.jts.JtsSpatialContextFactory;
+import org.locationtech.spatial4j.io.WKTReader;
+import org.locationtech.spatial4j.shape.Rectangle;
+import org.locationtech.spatial4j.shape.Shape;
+import org.locationtech.spatial4j.shape.impl.RectangleImpl;
+import org.locationtech.spatial4j.shape.jts.JtsGeometry;
+
+/**
+ * Geometry of a within predicate, parsed and fixed by Spatial4J once so it can be cached for the
+ * queries with the same WKT. Geometries crossing the antimeridian are split into a multipolygon.
+ *
+ * <p>Instances are shared between threads and mustn't be changed.
+ */
+@Getter
+public class WithinGeometry {
+
+  private static final JtsSpatialContextFactory SPATIAL_CONTEXT_FACTORY =
+      new JtsSpatialContextFactory();
+
+  static {
+    SPATIAL_CONTEXT_FACTORY.normWrapLongitude = true;
+    SPATIAL_CONTEXT_FACTORY.srid = 4326;
+    SPATIAL_CONTEXT_FACTORY.datelineRule = DatelineRule.ccwRect;
+  }
+
+  private static final JtsSpatialContext SPATIAL_CONTEXT =
+      SPATIAL_CONTEXT_FACTORY.newSpatialContext();
+
+  // at most this many covers of each kind are kept, one per setting of the visitors using them
+  private static final int MAX_MEMOIZED_COVERS = 4;
+
+  // the shape and the JTS geometry can be changed, so they aren't exposed
+  @Getter(AccessLevel.NONE)
+  private final Shape shape;
+
+  @Getter(AccessLevel.NONE)
+  private final Geometry geometry;
+
+  /** WKT of the JTS geometry, or null if it isn't a JTS geometry. */
+  private final String geometryText;
+
+  /** Bounding box of the shape. */
+  private final Rectangle boundingBox;
+
+  /** Bounding box of each part of the geometry, empty if it isn't a JTS geometry. */
+  private final List<Rectangle> partBoundingBoxes;
+
+  // rectangles inside the geometry by quadtree depth and maximum count, computed on demand
+  @Getter(AccessLevel.NONE)
+  private final Map<List<Integer>, List<Rectangle>> interiorCovers = new ConcurrentHashMap<>();
+
+  // clustered part bounding boxes by maximum count and inflation, computed on demand
+  @Getter(AccessLevel.NONE)
+  private final Map<List<Number>, List<Rectangle>> partClusters = new ConcurrentHashMap<>();
+
+  // geohash cells by maximum precision and count, computed on demand
+  @Getter(AccessLevel.NONE)
+  private final Map<List<Integer>, List<String>> geohashCovers = new ConcurrentHashMap<>();
+
+  private WithinGeometry(Shape shape) {
+    this.shape = shape;
+    this.geometry = shape instanceof JtsGeometry ? ((JtsGeometry) shape).getGeom() : null;
+    this.geometryText = geometry != null ? geometry.toText() : null;
+    this.boundingBox = shape.getBoundingBox();
+
+    if (geometry == null) {
+      this.partBoundingBoxes = Collections.emptyList();
+    } else {
+      List<Rectangle> parts = new ArrayList<>(geometry.getNumGeometries());
+      for (int i = 0; i < geometry.getNumGeometries(); i++) {
+        parts.add(toRectangle(geometry.getGeometryN(i).getEnvelopeInternal()));
+      }
+      this.partBoundingBoxes = Collections.unmodifiableList(parts);
+    }
+  }
+
+  /**
+   * Finds rectangles that lie inside the geometry, boundary excluded, so the points in them match
+   * without testing the geometry. The bounding box of the geometry is split into quadrants up to
+   * the given depth, the quadrants inside the geometry are kept and these crossing its boundary
+   * are split further. Adjacent quadrants in the same row are merged. Past the given number of
+   * rectangles, the smallest ones are left out.
+   *
+   * @param depth maximum number of splits, a depth of d gives quadrants of 1/2^d of the bounding
+   *     box
+   * @param maxRectangles maximum number of rectangles
+   * @return rectangles inside the geometry, empty if there are none or it isn't a polygon
+   */
+  public List<Rectangle> getInteriorRectangles(int depth, int maxRectangles) {
+    if (depth <= 0 || maxRectangles <= 0 || !(geometry instanceof Polygonal)) {
+      return Collections.emptyList();
+    }
+    return memoize(
+        interiorCovers,
+        List.of(depth, maxRectangles),
+        k -> largest(coverInterior(depth), maxRectangles));
+  }
+
+  /** The largest rectangles, in the order they are given. */
+  private static List<Rectangle> largest(List<Rectangle> rectangles, int maxRectangles) {
+    if (rectangles.size() <= maxRectangles) {
+      return rectangles;
+    }
+    List<Rectangle> bySize = new ArrayList<>(rectangles);
+    bySize.sort(Comparator.comparingDouble(WithinGeometry::area).reversed());
+    Set<Rectangle> kept = Collections.newSetFromMap(new IdentityHashMap<>(maxRectangles * 2));
+    kept.addAll(bySize.subList(0, maxRectangles));
+
+    List<Rectangle> largest = new ArrayList<>(maxRectangles);
+    for (Rectangle r : rectangles) {
+      if (kept.contains(r)) {
+        largest.add(r);
+      }
+    }
+    return Collections.unmodifiableList(largest);
+  }
+
+  private static double area(Rectangle r) {
+    return r.getWidth() * r.getHeight();
+  }
+
+  private List<Rectangle> coverInterior(int depth) {
+    PreparedGeometry prepared = PreparedGeometryFactory.prepare(geometry);
+    List<Envelope> cells = new ArrayList<>();
+    coverInterior(prepared, geometry.getEnvelopeInternal(), depth, cells);
+
+    cells.sort(
+        Comparator.comparingDouble(Envelope::getMinY)
+            .thenComparingDouble(Envelope::getMaxY)
+            .thenComparingDouble(Envelope::getMinX));
+    List<Rectangle> rectangles = new ArrayList<>();
+    Envelope row = null;
+    for (Envelope cell : cells) {
+      if (row != null
+          && row.getMinY() == cell.getMinY()
+          && row.getMaxY() == cell.getMaxY()
+          && row.getMaxX() == cell.getMinX()) {
+        row.expandToInclude(cell);
+      } else {
+        if (row != null) {
+          rectangles.add(toRectangle(row));
+        }
+        row = new Envelope(cell);
+      }
+    }
+    if (row != null) {
+      rectangles.add(toRectangle(row));
+    }
+    return Collections.unmodifiableList(rectangles);
+  }
+
+  private static void coverInterior(
+      PreparedGeometry prepared, Envelope cell, int depth, List<Envelope> cells) {
+    Geometry cellGeometry = prepared.getGeometry().getFactory().toGeometry(cell);
+    if (prepared.containsProperly(cellGeometry)) {
+      cells.add(cell);
+    } else if (depth > 0 && prepared.intersects(cellGeometry)) {
+      double midX = (cell.getMinX() + cell.getMaxX()) / 2;
+      double midY = (cell.getMinY() + cell.getMaxY()) / 2;
+      Envelope[] quadrants = {
+        new Envelope(cell.getMinX(), midX, cell.getMinY(), midY),
+        new Envelope(midX, cell.getMaxX(), cell.getMinY(), midY),
+        new Envelope(cell.getMinX(), midX, midY, cell.getMaxY()),
+        new Envelope(midX, cell.getMaxX(), midY, cell.getMaxY())
+      };
+      for (Envelope quadrant : quadrants) {
+        coverInterior(prepared, quadrant, depth - 1, cells);
+      }
+    }
+  }
+
+  /**
+   * Groups the bounding boxes of the parts into at most the given number of boxes covering them.
+   * The parts are split in two along the longer side of their bounding box until the box of a group
+   * is at most the given inflation larger than the boxes of its parts, or the number of boxes is
+   * used up.
+   *
+   * @param maxBoxes maximum number of boxes
+   * @param maxInflation how much larger the area of a box can be than the sum of the areas of its
+   *     parts, e.g. 1 for twice the area
+   * @return boxes covering all the parts
+   */
+  public List<Rectangle> getClusteredPartBoundingBoxes(int maxBoxes, double maxInflation) {
+    if (geometry == null || maxBoxes <= 0 || geometry.getNumGeometries() <= maxBoxes) {
+      return partBoundingBoxes;
+    }
+    return memoize(
+        partClusters,
+        List.of(maxBoxes, maxInflation),
+        k -> {
+          List<Envelope> parts = new ArrayList<>(geometry.getNumGeometries());
+          for (int i = 0; i < geometry.getNumGeometries(); i++) {
+            parts.add(geometry.getGeometryN(i).getEnvelopeInternal());
+          }
+          List<Rectangle> boxes = new ArrayList<>();
+          clusterParts(parts, maxBoxes, maxInflation, boxes);
+          return Collections.unmodifiableList(boxes);
+        });
+  }
+
+  private void clusterParts(
+      List<Envelope> parts, int maxBoxes, double maxInflation, List<Rectangle> boxes) {
+    Envelope union = new Envelope();
+    double partsArea = 0;
+    for (Envelope part : parts) {
+      union.expandToInclude(part);
+      partsArea += part.getArea();
+    }
+
+    boolean small =
+        partsArea > 0 ? union.getArea() <= partsArea * (1 + maxInflation) : union.getArea() == 0;
+    if (parts.size() == 1 || maxBoxes == 1 || small) {
+      boxes.add(toRectangle(union));
+      return;
+    }
+
+    List<Envelope> sorted = new ArrayList<>(parts);
+    if (union.getWidth() >= union.getHeight()) {
+      sorted.sort(Comparator.comparingDouble(e -> e.getMinX() + e.getMaxX()));
+    } else {
+      sorted.sort(Comparator.comparingDouble(e -> e.getMinY() + e.getMaxY()));
+    }
+    int half = sorted.size() / 2;
+    clusterParts(sorted.subList(0, half), maxBoxes / 2, maxInflation, boxes);
+    clusterParts(sorted.subList(half, sorted.size()), maxBoxes - maxBoxes / 2, maxInflation, boxes);
+  }
+
+  /**
+   * Finds the geohash cells the geometry is in, see {@link GeohashCover}.
+   *
+   * @param maxPrecision maximum number of characters of the geohashes
+   * @param maxCells maximum number of cells
+   * @return geohashes of the cells, empty if there are too many
+   */
+  public List<String> getGeohashCells(int maxPrecision, int maxCells) {
+    return memoize(
+        geohashCovers,
+        List.of(maxPrecision, maxCells),
+        k -> {
+          List<String> cells =
+              geometry != null
+                  ? GeohashCover.cover(geometry, maxPrecision, maxCells)
+                  : GeohashCover.cover(boundingBox, maxPrecision, maxCells);
+          return cells != null ? Collections.unmodifiableList(cells) : Collections.emptyList();
+        });
+  }
+
+  /** Number of points of the JTS geometry, 0 if it isn't a JTS geometry. */
+  public int getNumPoints() {
+    return geometry != null ? geometry.getNumPoints() : 0;
+  }
+
+  /**
+   * Estimate of the memory of the geometry in bytes, to bound the caches: its WKT, and a JTS
+   * coordinate and its share of the prepared and parsed structures per point.
+   */
+  public long getWeight() {
+    return (geometryText != null ? geometryText.length() : 0) + 64L * getNumPoints();
+  }
+
+  /** Whether the JTS geometry is a multipolygon. */
+  public boolean isMultiPolygon() {
+    return geometry instanceof MultiPolygon;
+  }
+
+  /**
+   * Computes a value once per key. The maps are keyed by the settings of the visitors, past a few
+   * keys the values aren't kept, so the memory of a cached geometry stays bounded.
+   */
+  private static <K, V> V memoize(Map<K, V> memos, K key, Function<K, V> compute) {
+    V value = memos.get(key);
+    if (value == null) {
+      value = compute.apply(key);
+      if (memos.size() < MAX_MEMOIZED_COVERS) {
+        memos.putIfAbsent(key, value);
+      }
+    }
+    return value;
+  }
+
+  private Rectangle toRectangle(Envelope env) {
+    return new RectangleImpl(
+        env.getMinX(), env.getMaxX(), env.getMinY(), env.getMaxY(), shape.getContext());
+  }
+
+  /**
+   * Parses a WKT geometry.
+   *
+   * @param wkt geometry to parse
+   * @return parsed geometry
+   * @throws IllegalArgumentException if the WKT isn't valid
+   */
+  public static WithinGeometry parse(String wkt) {
+    // the reader keeps state while parsing
+    WKTReader reader = new WKTReader(SPATIAL_CONTEXT, SPATIAL_CONTEXT_FACTORY);
+    try {
+      return new WithinGeometry(reader.parse(wkt));
+    } catch (ParseException e) {
+      throw new IllegalArgumentException(e.getMessage(), e);
+    }
+  }
+}
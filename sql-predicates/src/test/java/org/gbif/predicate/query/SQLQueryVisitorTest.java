@@ -14,8 +14,12 @@
 package org.gbif.predicate.query;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.junit.jupiter.api.Assertions.fail;
 
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.time.Instant;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -23,8 +27,13 @@ import java.util.Date;
 import java.util.List;
 import java.util.Optional;
 import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import org.gbif.api.exception.QueryBuildingException;
 import org.gbif.api.model.Constants;
+import org.gbif.api.model.common.search.SearchParameter;
 import org.gbif.api.model.event.search.EventSearchParameter;
 import org.gbif.api.model.occurrence.search.OccurrenceSearchParameter;
 import org.gbif.api.model.predicate.ConjunctionPredicate;
@@ -51,6 +60,9 @@ import org.gbif.api.vocabulary.Country;
 import org.gbif.api.vocabulary.Language;
 import org.gbif.predicate.query.occurrence.OccurrenceTermsMapper;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.junit.jupiter.api.io.TempDir;
+import org.locationtech.spatial4j.shape.Rectangle;
 
 public class SQLQueryVisitorTest {
 
@@ -137,6 +149,62 @@ public class SQLQueryVisitorTest {
         query);
   }
 
+  @Test
+  public void testNormalizedPredicate() throws QueryBuildingException {
+    Predicate p1 = new EqualsPredicate<>(PARAM, "value_1", false);
+    Predicate p2 = new EqualsPredicate<>(PARAM2, "value_2", false);
+    Predicate p =
+        new ConjunctionPredicate(
+            List.of(
+                p2,
+                new ConjunctionPredicate(List.of(p1, p2)),
+                new DisjunctionPredicate(List.of(p1))));
+
+    SQLQueryVisitor normalizingVisitor =
+        new SQLQueryVisitor(new OccurrenceTermsMapper(), "defaultChecklistKey", "occurrence");
+    normalizingVisitor.setNormalizePredicates(true);
+    assertEquals(
+        "((lower(catalognumber) = lower('value_1')) AND (lower(institutioncode) = lower('value_2')))",
+        normalizingVisitor.buildQuery(p));
+  }
+
+  @Test
+  public void testContradiction() throws QueryBuildingException {
+    Predicate p1 = new EqualsPredicate<>(OccurrenceSearchParameter.YEAR, "2000", false);
+    Predicate p2 = new EqualsPredicate<>(OccurrenceSearchParameter.YEAR, "2001", false);
+    Predicate p3 = new EqualsPredicate<>(PARAM, "value_1", false);
+
+    SQLQueryVisitor detectingVisitor =
+        new SQLQueryVisitor(new OccurrenceTermsMapper(), "defaultChecklistKey", "occurrence");
+    detectingVisitor.setDetectContradictions(true);
+    assertEquals(
+        "false", detectingVisitor.buildQuery(new ConjunctionPredicate(List.of(p1, p3, p2))));
+    assertEquals(
+        "((false) OR (lower(catalognumber) = lower('value_1')))",
+        detectingVisitor.buildQuery(
+            new DisjunctionPredicate(List.of(new ConjunctionPredicate(List.of(p1, p2)), p3))));
+    Predicate p4 = new IsNullPredicate<>(OccurrenceSearchParameter.RECORDED_BY);
+    Predicate p5 = new EqualsPredicate<>(OccurrenceSearchParameter.RECORDED_BY, "a", false);
+    assertEquals(
+        "false", detectingVisitor.buildQuery(new ConjunctionPredicate(List.of(p4, p3, p5))));
+
+    // a record can have many taxonomic issues
+    Predicate p6 =
+        new EqualsPredicate<>(
+            OccurrenceSearchParameter.TAXONOMIC_ISSUE, "6", false, "my-checklist-uuid-1");
+    Predicate p7 =
+        new EqualsPredicate<>(
+            OccurrenceSearchParameter.TAXONOMIC_ISSUE, "7", false, "my-checklist-uuid-1");
+    assertEquals(
+        "(((stringArrayContains(taxonomicissue['my-checklist-uuid-1'], '6', true))) AND ((stringArrayContains(taxonomicissue['my-checklist-uuid-1'], '7', true))))",
+        detectingVisitor.buildQuery(new ConjunctionPredicate(List.of(p6, p7))));
+
+    // off by default
+    assertEquals(
+        "((year = 2000) AND (year = 2001))",
+        visitor.buildQuery(new ConjunctionPredicate(List.of(p1, p2))));
+  }
+
   @Test
   public void testDisjunctionToInPredicate() throws QueryBuildingException {
     Predicate p1 = new EqualsPredicate<>(PARAM, "value_1", false);
@@ -168,7 +236,7 @@ public class SQLQueryVisitorTest {
     DisjunctionPredicate p = new DisjunctionPredicate(List.of(p1, p2));
     String query = visitor.buildQuery(p);
     assertEquals(
-        "(level0gid IN('IRL_1', 'GBR.2_1') OR level1gid IN('IRL_1', 'GBR.2_1') OR level2gid IN('IRL_1', 'GBR.2_1') OR level3gid IN('IRL_1', 'GBR.2_1'))",
+        "(level0gid IN('IRL_1') OR level1gid IN('IRL_1', 'GBR.2_1') OR level2gid IN('IRL_1') OR level3gid IN('IRL_1'))",
         query);
   }
 
@@ -180,7 +248,7 @@ public class SQLQueryVisitorTest {
     DisjunctionPredicate p = new DisjunctionPredicate(List.of(p1, p2));
     String query = visitor.buildQuery(p);
     assertEquals(
-        "(stringArrayContains(mediatype,'StillImage',true) OR stringArrayContains(mediatype,'Sound',true))",
+        "coalesce(arrays_overlap(mediatype,array('StillImage','Sound')),false)",
         query);
   }
 
@@ -198,7 +266,27 @@ public class SQLQueryVisitorTest {
     p = new DisjunctionPredicate(List.of(p1, p2, p3));
     query = visitor.buildQuery(p);
     assertEquals(
-        "((catalognumber = 'value_1') OR (catalognumber = 'value_2') OR (lower(catalognumber) = lower('value_3')))",
+        "((catalognumber IN('value_1', 'value_2')) OR (lower(catalognumber) = lower('value_3')))",
+        query);
+  }
+
+  @Test
+  public void testMixedDisjunctionToInPredicates() throws QueryBuildingException {
+    DisjunctionPredicate p =
+        new DisjunctionPredicate(
+            List.of(
+                new EqualsPredicate<>(PARAM, "value_1", false),
+                new EqualsPredicate<>(PARAM2, "value_3", false),
+                new GreaterThanPredicate<>(OccurrenceSearchParameter.YEAR, "2000"),
+                new EqualsPredicate<>(PARAM, "value_2", false),
+                new EqualsPredicate<>(PARAM2, "value_4", false),
+                new EqualsPredicate<>(PARAM, "value_5", true)));
+    String query = visitor.buildQuery(p);
+    assertEquals(
+        "((lower(catalognumber) IN(lower('value_1'), lower('value_2'))) "
+            + "OR (lower(institutioncode) IN(lower('value_3'), lower('value_4'))) "
+            + "OR (year > 2000) "
+            + "OR (catalognumber = 'value_5'))",
         query);
   }
 
@@ -219,6 +307,21 @@ public class SQLQueryVisitorTest {
         query);
   }
 
+  @Test
+  public void testGadmGidLevels() throws QueryBuildingException {
+    Predicate p = new EqualsPredicate<>(OccurrenceSearchParameter.GADM_GID, "ESP.1_1", false);
+    assertEquals("(level1gid = 'ESP.1_1')", visitor.buildQuery(p));
+
+    p =
+        new InPredicate<>(
+            OccurrenceSearchParameter.GADM_GID,
+            List.of("ESP", "ESP.1_1", "esp.1.2_1", "GBR.2_1", "ESP.1.2.3_1"),
+            false);
+    assertEquals(
+        "(level0gid IN('ESP') OR level1gid IN('ESP.1_1', 'GBR.2_1') OR level2gid IN('ESP.1.2_1') OR level3gid IN('ESP.1.2.3_1'))",
+        visitor.buildQuery(p));
+  }
+
   @Test
   public void testLikePredicate() throws QueryBuildingException {
     // NB: ? and * are wildcards (translated to SQL _ and %), so literal _ and % are escaped.
@@ -234,6 +337,22 @@ public class SQLQueryVisitorTest {
     assertEquals("catalognumber LIKE \'v_l%ue\\_\\%\'", query);
   }
 
+  @Test
+  public void testLikePrefixPredicate() throws QueryBuildingException {
+    // patterns without wildcards are equalities
+    Predicate p = new LikePredicate<>(PARAM, "value_%", false);
+    assertEquals("lower(catalognumber) = lower('value_%')", visitor.buildQuery(p));
+
+    // prefixes are ranges, if the column isn't lowered
+    p = new LikePredicate<>(PARAM, "ABC-12**", true);
+    assertEquals(
+        "(catalognumber >= 'ABC-12' AND catalognumber < 'ABC-13')", visitor.buildQuery(p));
+    p = new LikePredicate<>(PARAM, "ABC*", false);
+    assertEquals("lower(catalognumber) LIKE lower('ABC%')", visitor.buildQuery(p));
+    p = new LikePredicate<>(PARAM, "Åland*", true);
+    assertEquals("catalognumber LIKE 'Åland%'", visitor.buildQuery(p));
+  }
+
   @Test
   public void testEqualsVerbatimPredicate() throws QueryBuildingException {
     Predicate p = new EqualsPredicate<>(PARAM, "value", true);
@@ -249,7 +368,11 @@ public class SQLQueryVisitorTest {
 
     p = new EqualsPredicate<>(OccurrenceSearchParameter.RECORDED_BY, "value", true);
     query = visitor.buildQuery(p);
-    assertEquals("stringArrayContains(recordedby,'value',true)", query);
+    assertEquals("coalesce(array_contains(recordedby,'value'),false)", query);
+
+    p = new InPredicate<>(OccurrenceSearchParameter.RECORDED_BY, List.of("value", "O'Shea"), true);
+    query = visitor.buildQuery(p);
+    assertEquals("coalesce(arrays_overlap(recordedby,array('value','O\\'Shea')),false)", query);
   }
 
   @Test
@@ -333,7 +456,7 @@ public class SQLQueryVisitorTest {
         new InPredicate<>(OccurrenceSearchParameter.GADM_GID, List.of("IRL_1", "GBR.2_1"), false);
     String query = visitor.buildQuery(p);
     assertEquals(
-        "(level0gid IN('IRL_1', 'GBR.2_1') OR level1gid IN('IRL_1', 'GBR.2_1') OR level2gid IN('IRL_1', 'GBR.2_1') OR level3gid IN('IRL_1', 'GBR.2_1'))",
+        "(level0gid IN('IRL_1') OR level1gid IN('IRL_1', 'GBR.2_1') OR level2gid IN('IRL_1') OR level3gid IN('IRL_1'))",
         query);
   }
 
@@ -344,7 +467,7 @@ public class SQLQueryVisitorTest {
             OccurrenceSearchParameter.MEDIA_TYPE, List.of("StillImage", "Sound"), false);
     String query = visitor.buildQuery(p);
     assertEquals(
-        "(stringArrayContains(mediatype,'StillImage',true) OR stringArrayContains(mediatype,'Sound',true))",
+        "coalesce(arrays_overlap(mediatype,array('StillImage','Sound')),false)",
         query);
   }
 
@@ -383,6 +506,40 @@ public class SQLQueryVisitorTest {
         query);
   }
 
+  @Test
+  public void testNotPredicatePushDown() throws QueryBuildingException {
+    SQLQueryVisitor pushingVisitor =
+        new SQLQueryVisitor(new OccurrenceTermsMapper(), "defaultChecklistKey", "occurrence");
+    pushingVisitor.setPushDownNegations(true);
+
+    Predicate p1 = new EqualsPredicate<>(PARAM, "value_1", false);
+    Predicate p2 = new EqualsPredicate<>(PARAM2, "value_2", false);
+    Predicate p3 = new LessThanPredicate<>(OccurrenceSearchParameter.YEAR, "2000");
+
+    assertEquals("year >= 2000", pushingVisitor.buildQuery(new NotPredicate(p3)));
+    assertEquals(
+        "((NOT lower(catalognumber) = lower('value_1')) AND (year >= 2000))",
+        pushingVisitor.buildQuery(new NotPredicate(new DisjunctionPredicate(List.of(p1, p3)))));
+    assertEquals(
+        "((NOT lower(catalognumber) = lower('value_1')) OR (NOT lower(institutioncode) = lower('value_2')))",
+        pushingVisitor.buildQuery(new NotPredicate(new ConjunctionPredicate(List.of(p1, p2)))));
+    assertEquals(
+        "lower(catalognumber) = lower('value_1')",
+        pushingVisitor.buildQuery(new NotPredicate(new NotPredicate(p1))));
+
+    // the flipped comparison matches the records without a distance, the negation doesn't
+    Predicate p4 =
+        new LessThanPredicate<>(OccurrenceSearchParameter.DISTANCE_FROM_CENTROID_IN_METERS, "10");
+    assertEquals(
+        "(((distancefromcentroidinmeters >= 10 OR distancefromcentroidinmeters IS NULL)) AND (distancefromcentroidinmeters IS NOT NULL))",
+        pushingVisitor.buildQuery(new NotPredicate(p4)));
+
+    // null checks on arrays are left as they are
+    Predicate p5 = new IsNullPredicate<>(OccurrenceSearchParameter.RECORDED_BY);
+    assertEquals(
+        visitor.buildQuery(new NotPredicate(p5)), pushingVisitor.buildQuery(new NotPredicate(p5)));
+  }
+
   @Test
   public void testQuotes() throws QueryBuildingException {
     Predicate p = new EqualsPredicate<>(PARAM, "my \'pleasure\'", false);
@@ -408,7 +565,31 @@ public class SQLQueryVisitorTest {
     Predicate p = new GeoDistancePredicate("30", "10", "10km");
     String query = visitor.buildQuery(p);
     assertEquals(
-        "(geoDistance(30.0, 10.0, '10.0km', decimallatitude, decimallongitude) = TRUE)", query);
+        "((decimallatitude >= 29.90956304762293 AND decimallatitude <= 30.09043695237707"
+            + " AND (decimallongitude >= 9.895572387946757 AND decimallongitude <= 10.104427612053243))"
+            + " AND geoDistance(30.0, 10.0, '10.0km', decimallatitude, decimallongitude) = TRUE)",
+        query);
+
+    // crossing the antimeridian
+    query = visitor.buildQuery(new GeoDistancePredicate("10", "179.95", "10km"));
+    assertTrue(
+        query.startsWith(
+            "((decimallatitude >= 9.909563047622932 AND decimallatitude <= 10.090436952377068"
+                + " AND (decimallongitude >= 179.8581679106729 OR decimallongitude <= -179.95816791067293))"),
+        query);
+
+    // reaching the pole
+    query = visitor.buildQuery(new GeoDistancePredicate("89.95", "0", "10km"));
+    assertTrue(
+        query.startsWith(
+            "((decimallatitude >= 89.85956304762293 AND decimallatitude <= 90.0"
+                + " AND (decimallongitude >= -180.0 AND decimallongitude <= 180.0))"),
+        query);
+
+    // the whole globe
+    query = visitor.buildQuery(new GeoDistancePredicate("0", "0", "30000km"));
+    assertEquals(
+        "(geoDistance(0.0, 0.0, '30000.0km', decimallatitude, decimallongitude) = TRUE)", query);
   }
 
   @Test
@@ -432,6 +613,189 @@ public class SQLQueryVisitorTest {
         query);
   }
 
+  @Test
+  public void testWithinGeometryCache() throws QueryBuildingException {
+    final String wkt =
+        "POLYGON ((-21.4671921 65.441761, -22.7053151 63.8001572, -19.1269971 63.3980322, -13.4948065 65.076438, -16.0235596 66.5371808, -21.4671921 65.441761))";
+    SQLQueryVisitor cachingVisitor =
+        new SQLQueryVisitor(new OccurrenceTermsMapper(), "defaultChecklistKey", "occurrence");
+    cachingVisitor.setGeometryCache(new BoundedCache<>(1));
+
+    String query = cachingVisitor.buildQuery(new WithinPredicate(wkt));
+    assertEquals(visitor.buildQuery(new WithinPredicate(wkt)), query);
+    assertEquals(query, cachingVisitor.buildQuery(new WithinPredicate(wkt)));
+
+    BoundedCache.Stats stats = cachingVisitor.getGeometryCache().getStats();
+    assertEquals(1, stats.getHits());
+    assertEquals(1, stats.getMisses());
+
+    // the least recently used geometry is evicted
+    cachingVisitor.buildQuery(new WithinPredicate("POLYGON ((30 10, 10 20, 20 40, 40 40, 30 10))"));
+    cachingVisitor.buildQuery(new WithinPredicate(wkt));
+    stats = cachingVisitor.getGeometryCache().getStats();
+    assertEquals(3, stats.getMisses());
+    assertEquals(2, stats.getEvictions());
+    assertEquals(1, stats.getSize());
+
+    // geometries heavier than the cache aren't kept
+    cachingVisitor.setGeometryCache(
+        new BoundedCache<String, WithinGeometry>(10, 500, (k, g) -> k.length() + g.getWeight()));
+    assertEquals(query, cachingVisitor.buildQuery(new WithinPredicate(wkt)));
+    assertEquals(0, cachingVisitor.getGeometryCache().getStats().getSize());
+
+    // the shared cache is bounded by weight too
+    assertEquals(64L * 1024 * 1024, visitor.getGeometryCache().getStats().getMaxWeight());
+  }
+
+  @Test
+  public void testWithinInteriorRectangles() throws QueryBuildingException {
+    final String wkt = "POLYGON ((0 0, 40 0, 40 20, 20 40, 0 20, 0 0))";
+    SQLQueryVisitor coveringVisitor =
+        new SQLQueryVisitor(new OccurrenceTermsMapper(), "defaultChecklistKey", "occurrence");
+    assertEquals(
+        visitor.buildQuery(new WithinPredicate(wkt)),
+        coveringVisitor.buildQuery(new WithinPredicate(wkt)));
+
+    // the two quadrants of 10x10 inside the polygon are merged
+    coveringVisitor.setWithinInteriorDepth(2);
+    String query = coveringVisitor.buildQuery(new WithinPredicate(wkt));
+    assertTrue(
+        query.startsWith(
+            "((((decimallatitude >= 10.0 AND decimallatitude <= 20.0 AND (decimallongitude >= 10.0 AND decimallongitude <= 30.0)))) OR "
+                + "((decimallatitude >= 0.0 AND decimallatitude <= 40.0 AND (decimallongitude >= 0.0 AND decimallongitude <= 40.0)) AND contains('"),
+        query);
+    assertTrue(query.endsWith("', decimallatitude, decimallongitude) = TRUE))"), query);
+
+    // no rectangle fits in the shape at depth 1
+    coveringVisitor.setWithinInteriorDepth(1);
+    assertEquals(
+        visitor.buildQuery(new WithinPredicate(wkt)),
+        coveringVisitor.buildQuery(new WithinPredicate(wkt)));
+
+    assertThrows(IllegalArgumentException.class, () -> coveringVisitor.setWithinInteriorDepth(-1));
+    assertThrows(
+        IllegalArgumentException.class,
+        () ->
+            coveringVisitor.setWithinInteriorDepth(
+                SQLQueryVisitor.MAX_WITHIN_INTERIOR_DEPTH + 1));
+  }
+
+  @Test
+  public void testWithinInteriorRectanglesCap() throws QueryBuildingException {
+    final String wkt = "POLYGON ((0 0, 40 0, 40 20, 20 40, 0 20, 0 0))";
+    WithinGeometry geometry = WithinGeometry.parse(wkt);
+    List<Rectangle> all = geometry.getInteriorRectangles(6, Integer.MAX_VALUE);
+    assertTrue(all.size() > 3, all.toString());
+
+    // the largest rectangles are kept
+    List<Rectangle> capped = geometry.getInteriorRectangles(6, 3);
+    assertEquals(3, capped.size());
+    assertTrue(all.containsAll(capped));
+    double smallestKept =
+        capped.stream().mapToDouble(r -> r.getWidth() * r.getHeight()).min().getAsDouble();
+    assertTrue(
+        all.stream()
+            .filter(r -> !capped.contains(r))
+            .allMatch(r -> r.getWidth() * r.getHeight() <= smallestKept));
+
+    SQLQueryVisitor coveringVisitor =
+        new SQLQueryVisitor(new OccurrenceTermsMapper(), "defaultChecklistKey", "occurrence");
+    coveringVisitor.setWithinInteriorDepth(6);
+    coveringVisitor.setMaxWithinInteriorRectangles(3);
+    String query = coveringVisitor.buildQuery(new WithinPredicate(wkt));
+    // the 3 interior rectangles and the bounding box
+    assertEquals(4, query.split("decimallatitude >= ", -1).length - 1, query);
+  }
+
+  @Test
+  public void testClusteredPartBoundingBoxes() throws QueryBuildingException {
+    final String wkt =
+        "MULTIPOLYGON (((0 0, 1 0, 1 1, 0 1, 0 0)), ((2 0, 3 0, 3 1, 2 1, 2 0)), "
+            + "((100 0, 101 0, 101 1, 100 1, 100 0)), ((102 0, 103 0, 103 1, 102 1, 102 0)))";
+    SQLQueryVisitor clusteringVisitor =
+        new SQLQueryVisitor(new OccurrenceTermsMapper(), "defaultChecklistKey", "occurrence");
+    clusteringVisitor.setMaxWithinPartBoxes(2);
+
+    String query = clusteringVisitor.buildQuery(new WithinPredicate(wkt));
+    assertTrue(
+        query.contains(
+            " AND (((decimallatitude >= 0.0 AND decimallatitude <= 1.0 AND (decimallongitude >= 0.0 AND decimallongitude <= 3.0))"
+                + " OR (decimallatitude >= 0.0 AND decimallatitude <= 1.0 AND (decimallongitude >= 100.0 AND decimallongitude <= 103.0)))) AND contains('"),
+        query);
+
+    // the box of the second group would be too large, the first one has no boxes left
+    clusteringVisitor.setMaxWithinPartBoxes(3);
+    clusteringVisitor.setMaxWithinPartBoxInflation(0.25);
+    query = clusteringVisitor.buildQuery(new WithinPredicate(wkt));
+    assertTrue(
+        query.contains(
+            " AND (((decimallatitude >= 0.0 AND decimallatitude <= 1.0 AND (decimallongitude >= 0.0 AND decimallongitude <= 3.0))"
+                + " OR (decimallatitude >= 0.0 AND decimallatitude <= 1.0 AND (decimallongitude >= 100.0 AND decimallongitude <= 101.0))"
+                + " OR (decimallatitude >= 0.0 AND decimallatitude <= 1.0 AND (decimallongitude >= 102.0 AND decimallongitude <= 103.0)))) AND contains('"),
+        query);
+
+    // a box per part
+    clusteringVisitor.setMaxWithinPartBoxes(4);
+    assertEquals(
+        visitor.buildQuery(new WithinPredicate(wkt)),
+        clusteringVisitor.buildQuery(new WithinPredicate(wkt)));
+  }
+
+  @Test
+  public void testGeohashCells() throws QueryBuildingException {
+    SQLQueryVisitor geohashVisitor =
+        new SQLQueryVisitor(
+            new OccurrenceTermsMapper() {
+              @Override
+              public String getGeohashColumn() {
+                return "geohash";
+              }
+
+              @Override
+              public int getGeohashPrecision() {
+                return 2;
+              }
+            },
+            "defaultChecklistKey",
+            "occurrence");
+    final String wkt = "POLYGON ((10 10, 20 10, 20 20, 10 20, 10 10))";
+    String contains = "(contains('" + wkt + "', decimallatitude, decimallongitude) = TRUE)";
+    assertEquals(contains, geohashVisitor.buildQuery(new WithinPredicate(wkt)));
+
+    // 2 columns by 3 rows of cells in cell s
+    geohashVisitor.setMaxGeohashCells(6);
+    assertEquals(
+        "(geohash IN('s1', 's3', 's4', 's5', 's6', 's7') AND " + contains + ")",
+        geohashVisitor.buildQuery(new WithinPredicate(wkt)));
+
+    // too many cells of 2 characters, the cell of 1 character is a range of the column
+    geohashVisitor.setMaxGeohashCells(5);
+    assertEquals(
+        "((geohash >= 's' AND geohash < 't') AND " + contains + ")",
+        geohashVisitor.buildQuery(new WithinPredicate(wkt)));
+
+    // adjacent cells s and t are a single range
+    geohashVisitor.setMaxGeohashCells(32);
+    String wideQuery =
+        geohashVisitor.buildQuery(
+            new WithinPredicate("POLYGON ((10 10, 100 10, 100 40, 10 40, 10 10))"));
+    assertTrue(
+        wideQuery.startsWith(
+            "(((geohash >= 's' AND geohash < 'u') OR (geohash >= 'w' AND geohash < 'x')) AND "),
+        wideQuery);
+
+    // the last cell has no upper bound
+    geohashVisitor.setMaxGeohashCells(5);
+    String lastQuery =
+        geohashVisitor.buildQuery(
+            new WithinPredicate("POLYGON ((140 50, 170 50, 170 80, 140 80, 140 50))"));
+    assertTrue(lastQuery.startsWith("((geohash >= 'z') AND "), lastQuery);
+
+    String query = geohashVisitor.buildQuery(new GeoDistancePredicate("15", "15", "10km"));
+    assertTrue(query.startsWith("(geohash IN('s6') AND ((decimallatitude >= "), query);
+    assertTrue(query.endsWith(" = TRUE))"), query);
+  }
+
   @Test
   public void testAntimeridianWithinPredicate() throws Exception {
     // A rectangle over the Bering sea, shouldn't have any bounding box added
@@ -862,7 +1226,7 @@ public class SQLQueryVisitorTest {
     } else {
       assertEquals(
           String.format(
-              "((year >= %s) AND (year <= %s))",
+              "((year BETWEEN %s AND %s))",
               range.lowerEndpoint().intValue(), range.upperEndpoint().intValue()),
           query);
     }
@@ -941,7 +1305,7 @@ public class SQLQueryVisitorTest {
     } else {
       assertEquals(
           String.format(
-              "((elevation >= %s) AND (elevation <= %s))",
+              "((elevation BETWEEN %s AND %s))",
               range.lowerEndpoint().doubleValue(), range.upperEndpoint().doubleValue()),
           query);
     }
@@ -968,7 +1332,7 @@ public class SQLQueryVisitorTest {
     } else {
       assertEquals(
           String.format(
-              "((year >= %s) AND (year <= %s))",
+              "((year BETWEEN %s AND %s))",
               range.lowerEndpoint().intValue(), range.upperEndpoint().intValue()),
           query);
     }
@@ -981,7 +1345,7 @@ public class SQLQueryVisitorTest {
         visitor.buildQuery(
             new EqualsPredicate<>(
                 OccurrenceSearchParameter.ISSUE, "TAXON_MATCH_HIGHERRANK", false));
-    assertEquals("stringArrayContains(issue,'TAXON_MATCH_HIGHERRANK',true)", query);
+    assertEquals("coalesce(array_contains(issue,'TAXON_MATCH_HIGHERRANK'),false)", query);
 
     // InPredicate
     query =
@@ -991,7 +1355,7 @@ public class SQLQueryVisitorTest {
                 List.of("TAXON_MATCH_HIGHERRANK", "TAXON_MATCH_NONE"),
                 false));
     assertEquals(
-        "(stringArrayContains(issue,'TAXON_MATCH_HIGHERRANK',true) OR stringArrayContains(issue,'TAXON_MATCH_NONE',true))",
+        "coalesce(arrays_overlap(issue,array('TAXON_MATCH_HIGHERRANK','TAXON_MATCH_NONE')),false)",
         query);
 
     // LikePredicate
@@ -1007,7 +1371,7 @@ public class SQLQueryVisitorTest {
             new NotPredicate(
                 new EqualsPredicate<>(
                     OccurrenceSearchParameter.ISSUE, "TAXON_MATCH_HIGHERRANK", false)));
-    assertEquals("NOT stringArrayContains(issue,'TAXON_MATCH_HIGHERRANK',true)", query);
+    assertEquals("NOT coalesce(array_contains(issue,'TAXON_MATCH_HIGHERRANK'),false)", query);
 
     // Not disjunction
     query =
@@ -1024,7 +1388,7 @@ public class SQLQueryVisitorTest {
                         new EqualsPredicate<>(
                             OccurrenceSearchParameter.ISSUE, "RECORDED_DATE_INVALID", false)))));
     assertEquals(
-        "NOT (stringArrayContains(issue,'COORDINATE_INVALID',true) OR stringArrayContains(issue,'COORDINATE_OUT_OF_RANGE',true) OR stringArrayContains(issue,'ZERO_COORDINATE',true) OR stringArrayContains(issue,'RECORDED_DATE_INVALID',true))",
+        "NOT coalesce(arrays_overlap(issue,array('COORDINATE_INVALID','COORDINATE_OUT_OF_RANGE','ZERO_COORDINATE','RECORDED_DATE_INVALID')),false)",
         query);
 
     // IsNotNull
@@ -1256,6 +1620,119 @@ public class SQLQueryVisitorTest {
         query);
   }
 
+  @Test
+  public void testBackboneTaxonomyWithRanks(@TempDir Path tempDir) throws Exception {
+    Path ranks = tempDir.resolve("ranks.tsv");
+    Files.write(ranks, List.of("# key\trank", "1\tKINGDOM", "212\tCLASS", "7\tSUBSPECIES"));
+
+    SQLQueryVisitor rankVisitor =
+        new SQLQueryVisitor(new OccurrenceTermsMapper(), "defaultChecklistKey", "occurrence");
+    rankVisitor.setTaxonRankResolver(TaxonRankResolver.fromFile(ranks));
+
+    assertEquals(
+        "(taxonkey = '212' OR acceptedtaxonkey = '212' OR classkey = '212')",
+        rankVisitor.buildQuery(
+            new EqualsPredicate<>(OccurrenceSearchParameter.TAXON_KEY, "212", false)));
+    assertEquals(
+        "(taxonkey = '7' OR acceptedtaxonkey = '7')",
+        rankVisitor.buildQuery(
+            new EqualsPredicate<>(OccurrenceSearchParameter.TAXON_KEY, "7", false)));
+
+    // keys without a rank are searched in all the columns
+    Predicate p = new EqualsPredicate<>(OccurrenceSearchParameter.TAXON_KEY, "6", false);
+    assertEquals(visitor.buildQuery(p), rankVisitor.buildQuery(p));
+
+    p =
+        new InPredicate<>(
+            OccurrenceSearchParameter.TAXON_KEY, List.of("1", "212", "7", "6"), false);
+    assertEquals(
+        "(taxonkey IN('1','212','7','6') OR acceptedtaxonkey IN('1','212','7','6') OR kingdomkey IN('1','6') OR phylumkey IN('6') OR classkey IN('212','6') OR orderkey IN('6') OR familykey IN('6') OR genuskey IN('6') OR specieskey IN('6'))",
+        rankVisitor.buildQuery(p));
+  }
+
+  @Test
+  public void testVocabularyHierarchy(@TempDir Path tempDir) throws Exception {
+    Path concepts = tempDir.resolve("concepts.tsv");
+    Files.write(
+        concepts,
+        List.of(
+            "# term\tconcept\tparent",
+            "lifeStage\tJuvenile\t",
+            "lifeStage\tLarva\tJuvenile",
+            "lifeStage\tNauplius\tLarva",
+            "lifeStage\tAdult\t",
+            "typeStatus\tType\t",
+            "typeStatus\tHolotype\tType"));
+
+    SQLQueryVisitor vocabularyVisitor =
+        new SQLQueryVisitor(new OccurrenceTermsMapper(), "defaultChecklistKey", "occurrence");
+    vocabularyVisitor.setVocabularyHierarchy(VocabularyHierarchy.fromFile(concepts));
+
+    assertEquals(
+        "coalesce(lifestage.concept IN('Larva', 'Nauplius'), false)",
+        vocabularyVisitor.buildQuery(
+            new EqualsPredicate<>(OccurrenceSearchParameter.LIFE_STAGE, "larva", false)));
+    assertEquals(
+        "coalesce(lifestage.concept IN('Juvenile', 'Larva', 'Nauplius', 'Adult'), false)",
+        vocabularyVisitor.buildQuery(
+            new InPredicate<>(
+                OccurrenceSearchParameter.LIFE_STAGE, List.of("Juvenile", "Adult"), false)));
+    assertEquals(
+        "coalesce(arrays_overlap(typestatus.concepts, array('Type', 'Holotype')), false)",
+        vocabularyVisitor.buildQuery(
+            new EqualsPredicate<>(OccurrenceSearchParameter.TYPE_STATUS, "Type", false)));
+
+    // negations keep matching the records without a value
+    assertEquals(
+        "NOT coalesce(lifestage.concept IN('Larva', 'Nauplius'), false)",
+        vocabularyVisitor.buildQuery(
+            new NotPredicate(
+                new EqualsPredicate<>(OccurrenceSearchParameter.LIFE_STAGE, "Larva", false))));
+    assertEquals(
+        "NOT coalesce(arrays_overlap(typestatus.concepts, array('Holotype')), false)",
+        vocabularyVisitor.buildQuery(
+            new NotPredicate(
+                new EqualsPredicate<>(OccurrenceSearchParameter.TYPE_STATUS, "Holotype", false))));
+
+    // concepts that aren't in the trees are searched in the lineage
+    Predicate p =
+        new InPredicate<>(OccurrenceSearchParameter.LIFE_STAGE, List.of("Adult", "Egg"), false);
+    assertEquals(visitor.buildQuery(p), vocabularyVisitor.buildQuery(p));
+  }
+
+  @Test
+  public void testCaseFoldedColumns() throws QueryBuildingException {
+    SQLQueryVisitor caseFoldedVisitor =
+        new SQLQueryVisitor(
+            new OccurrenceTermsMapper() {
+              @Override
+              public String getCaseFoldedColumn(SearchParameter searchParameter) {
+                return searchParameter == PARAM ? "catalognumber_lc" : null;
+              }
+            },
+            "defaultChecklistKey",
+            "occurrence");
+
+    assertEquals(
+        "catalognumber_lc = 'value_1'",
+        caseFoldedVisitor.buildQuery(new EqualsPredicate<>(PARAM, "Value_1", false)));
+    assertEquals(
+        "(catalognumber_lc IN('value_1', 'o\\'shea'))",
+        caseFoldedVisitor.buildQuery(
+            new InPredicate<>(PARAM, List.of("VALUE_1", "O'Shea"), false)));
+    assertEquals(
+        "(catalognumber_lc >= 'value_' AND catalognumber_lc < 'value`')",
+        caseFoldedVisitor.buildQuery(new LikePredicate<>(PARAM, "Value_*", false)));
+
+    // matching case and other parameters use the column as it is
+    assertEquals(
+        "catalognumber = 'Value_1'",
+        caseFoldedVisitor.buildQuery(new EqualsPredicate<>(PARAM, "Value_1", true)));
+    Predicate p =
+        new EqualsPredicate<>(OccurrenceSearchParameter.INSTITUTION_CODE, "Value_1", false);
+    assertEquals(visitor.buildQuery(p), caseFoldedVisitor.buildQuery(p));
+  }
+
   @Test
   public void testMultiTaxonomyEqualsPredicate() throws QueryBuildingException {
     EqualsPredicate<OccurrenceSearchParameter> equalsPredicate =
@@ -1371,7 +1848,7 @@ public class SQLQueryVisitorTest {
             EventSearchParameter.HUMBOLDT_EVENT_DURATION_VALUE_IN_MINUTES, "1,3", false);
     query = visitor.buildQuery(p);
     assertEquals(
-        "((h.humboldteventdurationvalueinminutes >= 1.0) AND (h.humboldteventdurationvalueinminutes <= 3.0))",
+        "((h.humboldteventdurationvalueinminutes BETWEEN 1.0 AND 3.0))",
         query);
 
     p =
@@ -1445,7 +1922,54 @@ public class SQLQueryVisitorTest {
             OccurrenceSearchParameter.NUCLEOTIDE_SEQUENCE_SEQUENCE_LENGTH, "20");
     ConjunctionPredicate andPredicate = new ConjunctionPredicate(List.of(greaterThan, lessThan));
     String query = visitor.buildQuery(andPredicate);
-    assertEquals("((dna.sequencelength >= 10) AND (dna.sequencelength <= 20))", query);
+    assertEquals("((dna.sequencelength BETWEEN 10 AND 20))", query);
+  }
+
+  @Test
+  public void testConjunctionRangeMerging() throws QueryBuildingException {
+    Predicate p =
+        new ConjunctionPredicate(
+            List.of(
+                new GreaterThanOrEqualsPredicate<>(OccurrenceSearchParameter.YEAR, "1990"),
+                new EqualsPredicate<>(PARAM, "value", false),
+                new LessThanOrEqualsPredicate<>(OccurrenceSearchParameter.YEAR, "2010"),
+                new GreaterThanPredicate<>(OccurrenceSearchParameter.YEAR, "1995"),
+                new LessThanPredicate<>(OccurrenceSearchParameter.ELEVATION, "100"),
+                new LessThanOrEqualsPredicate<>(OccurrenceSearchParameter.ELEVATION, "50.5")));
+    String query = visitor.buildQuery(p);
+    assertEquals(
+        "((year > 1995 AND year <= 2010) "
+            + "AND (lower(catalognumber) = lower('value')) "
+            + "AND (elevation <= 50.5))",
+        query);
+
+    // the same bound is exclusive if either comparison is
+    p =
+        new ConjunctionPredicate(
+            List.of(
+                new GreaterThanOrEqualsPredicate<>(OccurrenceSearchParameter.YEAR, "1990"),
+                new GreaterThanPredicate<>(OccurrenceSearchParameter.YEAR, "1990")));
+    assertEquals("((year > 1990))", visitor.buildQuery(p));
+  }
+
+  @Test
+  public void testConjunctionDateRangeMerging() throws QueryBuildingException {
+    OccurrenceSearchParameter param = OccurrenceSearchParameter.LAST_INTERPRETED;
+    Predicate p =
+        new ConjunctionPredicate(
+            List.of(
+                new GreaterThanOrEqualsPredicate<>(param, "2000"),
+                new GreaterThanPredicate<>(param, "2000-05"),
+                new LessThanOrEqualsPredicate<>(param, "2001"),
+                new LessThanPredicate<>(param, "2002")));
+    String query = visitor.buildQuery(p);
+    // after May 2000, up to the end of 2001
+    assertEquals(
+        String.format(
+            "((lastinterpreted >= %s AND lastinterpreted < %s))",
+            Instant.parse("2000-06-01T00:00:00Z").toEpochMilli(),
+            Instant.parse("2002-01-01T00:00:00Z").toEpochMilli()),
+        query);
   }
 
   @Test
@@ -1475,7 +1999,7 @@ public class SQLQueryVisitorTest {
                                     "30")))))));
     String query = visitor.buildQuery(p);
     assertEquals(
-        "(((occurrencestatus IN('PRESENT'))) AND (((((dna.sequencelength >= 10) AND (dna.sequencelength <= 20))) OR (((dna.sequencelength >= 20) AND (dna.sequencelength <= 30))))))",
+        "(((occurrencestatus IN('PRESENT'))) AND ((((dna.sequencelength BETWEEN 10 AND 20)) OR ((dna.sequencelength BETWEEN 20 AND 30)))))",
         query);
   }
 
@@ -1507,4 +2031,110 @@ public class SQLQueryVisitorTest {
         "(((occurrence.datasetkey IN('b364710b-3f07-4876-a554-1943b702363f', '6595e04b-13d2-4eac-933f-73786627b5a2'))) AND (NOT (((lower(institutionkey) IN(lower('75f50140-830d-4630-a290-3d6e951a7c29')))) AND ((lower(collectionkey) IN(lower('2294871f-f0f7-44b2-b707-e9511ff5a878')))))))";
     assertEquals(expectedQuery, query);
   }
+
+  @Test
+  public void testLargePredicateTree() throws QueryBuildingException {
+    DisjunctionPredicate p = largePredicateTree();
+
+    // the visit methods resolved by the first translation are reused by the second
+    String query = visitor.buildQuery(p);
+    assertEquals(query, visitor.buildQuery(p));
+    assertTrue(
+        query.startsWith(
+            "((((year = 0) AND (NOT lower(catalognumber) = lower('value_0')) AND (month IS NOT NULL)))"));
+  }
+
+  /**
+   * Compares the dispatch through the table of visit methods to a reflective lookup and invocation
+   * per node, on the nodes of the same tree. Run with {@code mvn test -Dbenchmark=true}.
+   */
+  @Test
+  @EnabledIfSystemProperty(named = "benchmark", matches = "true")
+  public void benchmarkVisitDispatch() throws Exception {
+    List<Predicate> nodes = new ArrayList<>();
+    for (Predicate branch : largePredicateTree().getPredicates()) {
+      nodes.addAll(((ConjunctionPredicate) branch).getPredicates());
+    }
+
+    long reflectionNanos = Long.MAX_VALUE;
+    long tableNanos = Long.MAX_VALUE;
+    for (int run = 0; run < 10; run++) {
+      SQLQueryVisitor.QueryContext reflectionContext = new SQLQueryVisitor.QueryContext();
+      long start = System.nanoTime();
+      for (Predicate node : nodes) {
+        visitor
+            .getClass()
+            .getMethod("visit", node.getClass(), SQLQueryVisitor.QueryContext.class)
+            .invoke(visitor, node, reflectionContext);
+      }
+      reflectionNanos = Math.min(reflectionNanos, System.nanoTime() - start);
+
+      SQLQueryVisitor.QueryContext tableContext = new SQLQueryVisitor.QueryContext();
+      start = System.nanoTime();
+      for (Predicate node : nodes) {
+        visitor.visit((Object) node, tableContext);
+      }
+      tableNanos = Math.min(tableNanos, System.nanoTime() - start);
+
+      assertEquals(reflectionContext.toString(), tableContext.toString());
+    }
+
+    System.out.printf(
+        "Visit dispatch of %d nodes, best of 10 runs: reflection %d us, table %d us%n",
+        nodes.size(),
+        TimeUnit.NANOSECONDS.toMicros(reflectionNanos),
+        TimeUnit.NANOSECONDS.toMicros(tableNanos));
+    assertTrue(tableNanos < reflectionNanos);
+  }
+
+  /** Tens of thousands of nodes, every one of them goes through the visit dispatch. */
+  private static DisjunctionPredicate largePredicateTree() {
+    List<Predicate> branches = new ArrayList<>();
+    for (int i = 0; i < 10_000; i++) {
+      branches.add(
+          new ConjunctionPredicate(
+              List.of(
+                  new EqualsPredicate<>(OccurrenceSearchParameter.YEAR, String.valueOf(i), false),
+                  new NotPredicate(new EqualsPredicate<>(PARAM, "value_" + i, false)),
+                  new IsNotNullPredicate<>(OccurrenceSearchParameter.MONTH))));
+    }
+    return new DisjunctionPredicate(branches);
+  }
+
+  @Test
+  public void testConcurrentTranslation() throws Exception {
+    // A single visitor is shared by all threads, so no translation may see another one's output.
+    List<Predicate> predicates = new ArrayList<>();
+    for (int i = 0; i < 5_000; i++) {
+      predicates.add(
+          new ConjunctionPredicate(
+              List.of(
+                  new EqualsPredicate<>(PARAM, "value_" + i, false),
+                  new InPredicate<>(PARAM2, List.of("a" + i, "b" + i), false),
+                  new DisjunctionPredicate(
+                      List.of(
+                          new GreaterThanOrEqualsPredicate<>(
+                              OccurrenceSearchParameter.YEAR, String.valueOf(1900 + i % 100)),
+                          new IsNullPredicate<>(OccurrenceSearchParameter.MONTH))),
+                  new NotPredicate(new LikePredicate<>(PARAM, "*" + i, false)))));
+    }
+
+    List<String> expected = new ArrayList<>();
+    for (Predicate p : predicates) {
+      expected.add(visitor.buildQuery(p));
+    }
+
+    ExecutorService executor = Executors.newFixedThreadPool(16);
+    try {
+      List<Future<String>> results = new ArrayList<>();
+      for (Predicate p : predicates) {
+        results.add(executor.submit(() -> visitor.buildQuery(p)));
+      }
+      for (int i = 0; i < predicates.size(); i++) {
+        assertEquals(expected.get(i), results.get(i).get(30, TimeUnit.SECONDS));
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+  }
 }